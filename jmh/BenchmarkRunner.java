@@ -0,0 +1,25 @@
+package re.usto.umqtt;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so allocation rate (bytes per
+ * operation and MB/s) is reported next to throughput. An optional argument restricts the
+ * run to the benchmarks matching it, e.g. {@code Decoder} or {@code FrameBenchmark.publish}.
+ *
+ * @author gabriel
+ */
+
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "re\\.usto\\.umqtt\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,578 @@
+package re.usto.umqtt;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ServerSocket;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several {@link uMQTT} clients side by side in one app, against the stand-in broker,
+ * and checks they keep to themselves. Each connects through its own job (they all have the
+ * same single id), subscribes to a topic of its own and publishes there at QoS 0 to 2: it
+ * must get back exactly its own messages, take consecutive packet ids from its own allocator
+ * and count only its own traffic. Then each leaves a different number of publishes
+ * unacknowledged and is destroyed: preferences and files must hold one of each per client,
+ * named after it, and a client made again with the same id must find its own publishes
+ * only. Client ids have a slash in them, so names only work out if they're encoded. Exits
+ * with status 1 if anything is off.
+ *
+ * <p> Unlike the other checks this one needs the Android classes at run time (a device or
+ * Robolectric) for the clients' jobs; only the app's context and preferences are stood in
+ * for here.
+ *
+ * <pre>
+ * ClientIsolationCheck [--clients=4] [--messages=500]
+ * </pre>
+ *
+ * @author gabriel
+ */
+
+public class ClientIsolationCheck {
+
+    // Names clients keep their state under, followed by "-" and their encoded id
+    private static final String PREFS_FILE = "re.usto.umqtt.PREFS";
+    private static final String PREF_PACKET_ID = "re.usto.umqtt.PACKET_ID";
+    private static final String JOURNAL_DIRECTORY = "umqtt-journal";
+    private static final String INBOUND_STATE_FILE = "umqtt-inbound";
+
+    private final int mMessages;
+    private final List<String> mFailures = new ArrayList<>();
+
+    /**
+     * Preferences kept in memory. Listeners aren't told about changes, clients don't use them.
+     */
+    private static final class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        private synchronized Object get(String key, Object defValue) {
+            return mValues.containsKey(key) ? mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return (String) get(key, defValue);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return (Set<String>) get(key, defValues);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return (Integer) get(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return (Long) get(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return (Float) get(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return (Boolean) get(key, defValue);
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        private final class MemoryEditor implements Editor {
+
+            // A null value removes the key
+            private final Map<String, Object> mChanges = new HashMap<>();
+            private boolean mClear = false;
+
+            private Editor put(String key, Object value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putString(String key, String value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                return put(key, values != null ? new HashSet<>(values) : null);
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor remove(String key) {
+                return put(key, null);
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemoryPreferences.this) {
+                    if (mClear) mValues.clear();
+                    for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                        if (change.getValue() == null) mValues.remove(change.getKey());
+                        else mValues.put(change.getKey(), change.getValue());
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The app all clients live in: preferences in memory, files in a scratch directory.
+     */
+    private static final class ScratchContext extends ContextWrapper {
+
+        private final File mFilesDir;
+        private final Map<String, MemoryPreferences> mPreferences = new HashMap<>();
+
+        ScratchContext(File filesDir) {
+            super(null);
+            mFilesDir = filesDir;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+            MemoryPreferences preferences = mPreferences.get(name);
+            if (preferences == null) {
+                preferences = new MemoryPreferences();
+                mPreferences.put(name, preferences);
+            }
+            return preferences;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mFilesDir;
+        }
+
+        synchronized Map<String, MemoryPreferences> getPreferences() {
+            return new HashMap<>(mPreferences);
+        }
+    }
+
+    private final class Client implements uMQTTSubscription.OnReceivedBinaryPublish, Runnable {
+
+        final int index;
+        final String id;
+        final byte qosLevel;
+        final String topic;
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch done;
+        final AtomicInteger completed = new AtomicInteger(0);
+        // Messages got back, by number. Guarded by this
+        final BitSet echoed = new BitSet();
+        // Packet ids this client got for its messages, by message
+        final short[] packetIds;
+        uMQTT client;
+        uMQTTPublisher publisher;
+
+        Client(int index, CountDownLatch done) {
+            this.index = index;
+            this.id = "isolation/" + index;
+            this.qosLevel = (byte) (index % 3);
+            this.topic = "isolation/" + index + "/echo";
+            this.done = done;
+            this.packetIds = new short[mMessages];
+        }
+
+        String storageName(String base) {
+            try {
+                return base + "-" + URLEncoder.encode(id, "UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        uMQTTConfiguration configuration(int port) {
+            return new uMQTTConfiguration.Builder(id, "127.0.0.1", port)
+                    .setPersistPublishes(true)
+                    .setPersistInboundState(true)
+                    .setOnConnectionEstablishedListener(
+                            new uMQTTConfiguration.OnConnectionEstablishedListener() {
+                                @Override
+                                public void onConnectionEstablished() {
+                                    connected.countDown();
+                                }
+                            })
+                    .build();
+        }
+
+        void create(Context context, int port) {
+            client = uMQTT.create(context, configuration(port));
+            client.addBinarySubscription(topic, qosLevel, this);
+            publisher = new uMQTTPublisher(client, topic, qosLevel) {
+                @Override
+                protected void onPublishCompleted(short packetId) {
+                    completed.incrementAndGet();
+                }
+            };
+        }
+
+        @Override
+        public void onReceivedPublish(String topic, byte[] payload) {
+            if (!this.topic.equals(topic)) {
+                fail("client %d got a message for %s", index, topic);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int from = buffer.getInt();
+            int number = buffer.getInt();
+            if (from != index || number < 0 || number >= mMessages) {
+                fail("client %d got message %d of client %d", index, number, from);
+                return;
+            }
+            if (payload.length != payloadSize(number)) {
+                fail("client %d got %d bytes for message %d, %d were sent", index,
+                        payload.length, number, payloadSize(number));
+            }
+            int count;
+            synchronized (this) {
+                if (echoed.get(number)) fail("client %d got message %d twice", index, number);
+                echoed.set(number);
+                count = echoed.cardinality();
+            }
+            if (count == mMessages) done.countDown();
+        }
+
+        @Override
+        public void run() {
+            for (int number = 0; number < mMessages; ++number) {
+                byte[] payload = new byte[payloadSize(number)];
+                ByteBuffer.wrap(payload).putInt(index).putInt(number);
+                packetIds[number] = publisher.publish(payload);
+            }
+        }
+
+        /**
+         * Ids come from the client's own allocator only, one after the other whatever the
+         * other clients do. Traffic is counted apart too.
+         */
+        void checkTraffic() {
+            synchronized (this) {
+                if (echoed.cardinality() != mMessages)
+                    fail("client %d got %d of its %d messages back", index,
+                            echoed.cardinality(), mMessages);
+            }
+            if (qosLevel != 0) {
+                for (int number = 1; number < mMessages; ++number) {
+                    if (packetIds[number] != (short) (packetIds[0] + number)) {
+                        fail("client %d got packet id %d for message %d after %d for the first",
+                                index, packetIds[number] & 0xffff, number,
+                                packetIds[0] & 0xffff);
+                        break;
+                    }
+                }
+                if (completed.get() != mMessages)
+                    fail("client %d got %d of %d acknowledgements", index, completed.get(),
+                            mMessages);
+            }
+            uMQTTMetrics metrics = client.getMetrics();
+            long sent = metrics.getFramesSent(uMQTTFrame.MQ_PUBLISH);
+            long received = metrics.getFramesReceived(uMQTTFrame.MQ_PUBLISH);
+            if (sent != mMessages || received != mMessages)
+                fail("client %d counted %d publishes sent and %d received, expected %d",
+                        index, sent, received, mMessages);
+        }
+
+        /**
+         * Publishes left in the journal when destroyed: a different number for each client.
+         */
+        int unacknowledged() {
+            return index + 1;
+        }
+    }
+
+    ClientIsolationCheck(int messages) {
+        if (messages < 1 || messages > 60000)
+            throw new IllegalArgumentException("Messages must be between 1 and 60000");
+        mMessages = messages;
+    }
+
+    private static int payloadSize(int number) {
+        return 8 + number % 300;
+    }
+
+    private synchronized void fail(String format, Object... args) {
+        if (mFailures.size() < 20) mFailures.add(String.format(format, args));
+    }
+
+    private synchronized List<String> getFailures() {
+        return new ArrayList<>(mFailures);
+    }
+
+    boolean run(int port, int clients, File filesDir) throws IOException, InterruptedException {
+        ScratchContext context = new ScratchContext(filesDir);
+        CountDownLatch done = new CountDownLatch(clients);
+        Client[] all = new Client[clients];
+        try {
+            for (int i = 0; i < clients; ++i) {
+                all[i] = new Client(i, done);
+                all[i].create(context, port);
+            }
+            checkInstances(context, all, port);
+            for (Client client : all) {
+                if (!client.connected.await(30, TimeUnit.SECONDS)) {
+                    fail("client %d did not connect in time", client.index);
+                    return report();
+                }
+            }
+
+            Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; ++i) {
+                threads[i] = new Thread(all[i], "isolation-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) thread.join();
+            if (!done.await(60, TimeUnit.SECONDS))
+                fail("not every client got its messages back in time");
+            // Acknowledgements of the last messages may still be on their way
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            for (Client client : all) {
+                while (client.qosLevel != 0 && client.completed.get() < mMessages
+                        && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+            for (Client client : all) client.checkTraffic();
+
+            leaveUnacknowledged(all);
+            for (Client client : all) {
+                client.client.destroy();
+                if (uMQTT.getInstance(client.id) != null)
+                    fail("client %d can still be looked up once destroyed", client.index);
+            }
+            checkStorage(context, all);
+            checkRecreated(context, all);
+            return report();
+        }
+        finally {
+            for (Client client : all) {
+                if (client != null && client.client != null) client.client.destroy();
+            }
+        }
+    }
+
+    /**
+     * Each id is taken once, and looks its own client up.
+     */
+    private void checkInstances(Context context, Client[] all, int port) {
+        for (Client client : all) {
+            if (uMQTT.getInstance(client.id) != client.client)
+                fail("looking client %d up by id found another one", client.index);
+        }
+        try {
+            uMQTT duplicate = uMQTT.create(context, all[0].configuration(port));
+            duplicate.destroy();
+            fail("a second client with id %s was made", all[0].id);
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Closes the clients and has each publish a few more at QoS 1, which stay in its journal.
+     */
+    private void leaveUnacknowledged(Client[] all) throws InterruptedException {
+        for (Client client : all) {
+            client.client.close();
+            uMQTTPublisher publisher = new uMQTTPublisher(client.client, client.topic,
+                    (byte) 1) {
+                @Override
+                protected void onPublishCompleted(short packetId) {
+                    fail("publish id #%d was acknowledged while closed", packetId & 0xffff);
+                }
+            };
+            for (int i = 0; i < client.unacknowledged(); ++i) publisher.publish(new byte[8]);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (Client client : all) {
+            while (client.client.getInFlightPublishCount() != client.unacknowledged()
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            if (client.client.getInFlightPublishCount() != client.unacknowledged())
+                fail("client %d has %d publishes in flight, expected %d", client.index,
+                        client.client.getInFlightPublishCount(), client.unacknowledged());
+        }
+    }
+
+    /**
+     * One preference, one journal and one inbound state file per client, named after it.
+     */
+    private void checkStorage(ScratchContext context, Client[] all) {
+        Set<String> keys = new HashSet<>();
+        Set<String> files = new HashSet<>();
+        for (Client client : all) {
+            keys.add(client.storageName(PREF_PACKET_ID));
+            files.add(client.storageName(JOURNAL_DIRECTORY));
+            files.add(client.storageName(INBOUND_STATE_FILE));
+        }
+
+        Map<String, MemoryPreferences> preferences = context.getPreferences();
+        if (!preferences.keySet().equals(new HashSet<>(Arrays.asList(PREFS_FILE))))
+            fail("preferences files %s, expected only %s", preferences.keySet(), PREFS_FILE);
+        else if (!preferences.get(PREFS_FILE).getAll().keySet().equals(keys))
+            fail("preferences %s, expected %s", preferences.get(PREFS_FILE).getAll().keySet(),
+                    keys);
+
+        String[] listed = context.getFilesDir().list();
+        Set<String> found = new HashSet<>(Arrays.asList(listed != null ? listed : new String[0]));
+        if (!found.equals(files)) fail("files %s, expected %s", found, files);
+    }
+
+    /**
+     * Clients made again with the same ids find their own journal, and only that. They're
+     * pointed at a port nobody listens on so nothing gets acknowledged meanwhile.
+     */
+    private void checkRecreated(ScratchContext context, Client[] all) throws IOException {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+
+        for (Client client : all) {
+            try {
+                client.client = uMQTT.create(context, client.configuration(port));
+            }
+            catch (IllegalStateException e) {
+                fail("id %s was not free once its client was destroyed", client.id);
+                client.client = null;
+                continue;
+            }
+            int restored = client.client.getInFlightPublishCount();
+            if (restored != client.unacknowledged())
+                fail("client %d made again restored %d publishes, it had %d left",
+                        client.index, restored, client.unacknowledged());
+            if (uMQTT.getInstance(client.id) != client.client)
+                fail("looking client %d up by id didn't find it once made again", client.index);
+            client.client.destroy();
+            client.client = null;
+        }
+    }
+
+    private boolean report() {
+        List<String> failures = getFailures();
+        for (String failure : failures) System.out.println("FAILED: " + failure);
+        System.out.println(failures.isEmpty() ? "OK" : "FAILED");
+        return failures.isEmpty();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) delete(child);
+        if (!file.delete()) System.err.println("Could not delete " + file);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = 4;
+        int messages = 500;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0)
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "clients": clients = Integer.parseInt(value); break;
+                case "messages": messages = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        File filesDir = new File(System.getProperty("java.io.tmpdir"),
+                "umqtt-isolation-check-" + System.nanoTime());
+        if (!filesDir.mkdirs()) throw new IOException("Could not create " + filesDir);
+        StandInBroker broker = new StandInBroker();
+        boolean passed;
+        try {
+            passed = new ClientIsolationCheck(messages).run(broker.getPort(), clients, filesDir);
+        }
+        finally {
+            broker.stop();
+            delete(filesDir);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,116 @@
+package re.usto.umqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The input side's framing state machine, fed from memory as a socket would: each read
+ * hands over at most one TCP segment worth of bytes, so frames get split at arbitrary
+ * points. The stream mixes small publishes, a few larger ones (some bigger than the read
+ * buffer) and acknowledgements. Each frame is parsed the way the input service does.
+ *
+ * @author gabriel
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+    private static final int FRAMES = 2000;
+
+    // Typical loopback/ethernet MSS, and bigger reads when the kernel has a backlog
+    @Param({"536", "1460", "16384", "65536"})
+    int segmentSize;
+
+    private byte[] mStream;
+    private uMQTTFrameDecoder mDecoder;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws BrokenMQTTFrameException {
+        mBlackhole = blackhole;
+        uMQTTPacketIdAllocator allocator = new uMQTTPacketIdAllocator();
+        Random random = new Random(42);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; ++i) {
+            int kind = random.nextInt(100);
+            byte[] packet;
+            if (kind < 10) {
+                packet = new uMQTTFrame.Builder(uMQTTFrame.MQ_PUBACK)
+                        .setPacketId((short) (i + 1))
+                        .build()
+                        .getPacket();
+            }
+            else {
+                int payloadSize = kind < 90 ? 64 : kind < 98 ? 1024 : 8 * 1024;
+                uMQTTFrame.PublishBuilder builder = new uMQTTFrame.PublishBuilder()
+                        .setTopic("devices/" + random.nextInt(50) + "/telemetry")
+                        .setPayload(new byte[payloadSize])
+                        .setQosLevel(kind % 2);
+                builder.setPacketIdAllocator(allocator);
+                uMQTTFrame frame = builder.build();
+                allocator.release(frame.getPacketId());
+                packet = frame.getPacket();
+            }
+            stream.write(packet, 0, packet.length);
+        }
+        mStream = stream.toByteArray();
+
+        mDecoder = new uMQTTFrameDecoder(uMQTTConfiguration.DEFAULT_MAX_FRAME_SIZE,
+                new uMQTTBufferPool(uMQTTConfiguration.DEFAULT_MAX_FRAME_SIZE),
+                new uMQTTFrameDecoder.Handler() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int size) {
+                        if (((buffer[offset] >> 4) & 0xf) == uMQTTFrame.MQ_PUBLISH) {
+                            uMQTTMessage message = new uMQTTMessage(buffer, offset, size);
+                            mBlackhole.consume(message.getTopic());
+                            mBlackhole.consume(message.getPacketId());
+                        }
+                        else {
+                            mBlackhole.consume(uMQTTFrame.fetchBytes(
+                                    buffer[offset + 2], buffer[offset + 3]));
+                        }
+                    }
+
+                    @Override
+                    public void onOverflowedPublish(byte qosLevel, short packetId) { }
+                });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeStream() throws Exception {
+        int position = 0;
+        while (position < mStream.length) {
+            // One "read": whatever fits of the next segment
+            int segmentEnd = Math.min(position + segmentSize, mStream.length);
+            while (position < segmentEnd) {
+                ByteBuffer readBuffer = mDecoder.getReadBuffer();
+                int length = Math.min(readBuffer.remaining(), segmentEnd - position);
+                readBuffer.put(mStream, position, length);
+                position += length;
+                mDecoder.onRead();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package re.usto.umqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens N sessions over a few event loops against the stand-in broker, then times rounds
+ * where every session publishes once at QoS 1 and waits for its PUBACK. Heap taken per
+ * connected session and event loop CPU time per session round are printed when the trial
+ * ends; compare them across loop counts to check the engine scales with cores.
+ *
+ * @author gabriel
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventLoopBenchmark {
+
+    @Param({"1000", "5000"})
+    int sessions;
+
+    @Param({"1", "2", "4"})
+    int loops;
+
+    private static final String TOPIC = "bench/session";
+    private static final byte[] PAYLOAD = new byte[64];
+
+    private StandInBroker mBroker;
+    private uMQTTEventLoopGroup mGroup;
+    private uMQTTSession[] mSessions;
+    private final Semaphore mCompleted = new Semaphore(0);
+    private long mRounds = 0;
+    private long mCpuAtStart;
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; ++i) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long loopCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("uMQTT-loop-"))
+                total += Math.max(threads.getThreadCpuTime(thread.getId()), 0);
+        }
+        return total;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        mBroker = new StandInBroker();
+        long heapBefore = usedHeap();
+
+        mGroup = new uMQTTEventLoopGroup(loops);
+        final CountDownLatch connected = new CountDownLatch(sessions);
+        uMQTTSession.Listener listener = new uMQTTSession.Listener() {
+            @Override
+            public void onConnected(uMQTTSession session) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onMessage(uMQTTSession session, uMQTTMessage message) { }
+
+            @Override
+            public void onPublishCompleted(uMQTTSession session, short packetId) {
+                mCompleted.release();
+            }
+
+            @Override
+            public void onClosed(uMQTTSession session, IOException cause) { }
+        };
+
+        mSessions = new uMQTTSession[sessions];
+        for (int i = 0; i < sessions; ++i) {
+            mSessions[i] = mGroup.connect("127.0.0.1", mBroker.getPort(), "bench-" + i,
+                    (short) 60, listener);
+        }
+        if (!connected.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException("Sessions did not connect in time");
+
+        System.out.printf("%n%d sessions on %d loops: %d heap bytes per session%n",
+                sessions, loops, (usedHeap() - heapBefore) / sessions);
+        mCpuAtStart = loopCpuTime();
+    }
+
+    @Benchmark
+    public void publishRound() throws InterruptedException {
+        for (uMQTTSession session : mSessions) session.publish(TOPIC, PAYLOAD, (byte) 1);
+        mCompleted.acquire(sessions);
+        ++mRounds;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        long cpu = loopCpuTime() - mCpuAtStart;
+        if (mRounds > 0) {
+            System.out.printf("%nEvent loop CPU: %d ns per session round%n",
+                    cpu / (mRounds * sessions));
+        }
+        mGroup.shutdown();
+        mBroker.stop();
+    }
+}
@@ -0,0 +1,187 @@
+package re.usto.umqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread per connection model of the client (a reading thread and a writing thread for each
+ * connection, as the input and output services have) on platform and on virtual threads.
+ * Times rounds where every connection publishes once at QoS 0 on a topic only it subscribes
+ * to, and gets it back from the stand-in broker; heap per connection and setup time are
+ * printed once connected.
+ *
+ * <p> The virtual runs need Java 21 or later, and 10k connections need more than 20k file
+ * descriptors, both ends being in this process.
+ *
+ * @author gabriel
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class ExecutionModeBenchmark {
+
+    @Param({"platform", "virtual"})
+    String mode;
+
+    @Param({"1000", "10000"})
+    int connections;
+
+    private StandInBroker mBroker;
+    private uMQTTBufferPool mBufferPool;
+    private Connection[] mConnections;
+    private uMQTTPacketIdAllocator mAllocator;
+    private final Semaphore mEchoed = new Semaphore(0);
+    private CountDownLatch mConnected;
+
+    private final class Connection {
+        final uMQTTTransport transport = new uMQTTSocketTransport();
+        final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>();
+        byte[] publish;
+        Thread reader;
+        Thread writer;
+
+        void start(@uMQTTConfiguration.ExecutionMode int executionMode, int index)
+                throws IOException, BrokenMQTTFrameException {
+            transport.connect("127.0.0.1", mBroker.getPort());
+            final uMQTTFrameDecoder decoder = new uMQTTFrameDecoder(
+                    uMQTTConfiguration.DEFAULT_MAX_FRAME_SIZE, mBufferPool,
+                    new uMQTTFrameDecoder.Handler() {
+                        @Override
+                        public void onFrame(byte[] buffer, int offset, int size) {
+                            int type = (buffer[offset] >> 4) & 0xf;
+                            if (type == uMQTTFrame.MQ_SUBACK) mConnected.countDown();
+                            else if (type == uMQTTFrame.MQ_PUBLISH) mEchoed.release();
+                        }
+
+                        @Override
+                        public void onOverflowedPublish(byte qosLevel, short packetId) { }
+                    });
+
+            reader = uMQTTThreads.newThread(executionMode, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (transport.read(decoder.getReadBuffer()) != -1) decoder.onRead();
+                    }
+                    catch (IOException e) {
+                        // Closed on tear down
+                    }
+                }
+            }, "bench-input-" + index);
+            writer = uMQTTThreads.newThread(executionMode, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) transport.write(ByteBuffer.wrap(outbound.take()));
+                    }
+                    catch (IOException | InterruptedException e) {
+                        // Closed on tear down
+                    }
+                }
+            }, "bench-output-" + index);
+            reader.start();
+            writer.start();
+            outbound.offer(new uMQTTFrame.ConnectBuilder()
+                    .setClientId("bench-" + index)
+                    .setCleanSession()
+                    .setKeepAlive((short) 60)
+                    .build()
+                    .getPacket());
+
+            String topic = "bench/mode/" + index;
+            uMQTTFrame.SubscribeBuilder subscribe = new uMQTTFrame.SubscribeBuilder()
+                    .setTopics(new String[]{topic})
+                    .setQoS(new byte[]{0});
+            subscribe.setPacketIdAllocator(mAllocator);
+            uMQTTFrame frame = subscribe.build();
+            mAllocator.release(frame.getPacketId());
+            outbound.offer(frame.getPacket());
+
+            uMQTTFrame.PublishBuilder builder = new uMQTTFrame.PublishBuilder()
+                    .setTopic(topic)
+                    .setPayload(new byte[64])
+                    .setQosLevel((byte) 0);
+            builder.setPacketIdAllocator(mAllocator);
+            frame = builder.build();
+            mAllocator.release(frame.getPacketId());
+            publish = frame.getPacket();
+        }
+
+        void stop() throws IOException {
+            writer.interrupt();
+            transport.close();
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; ++i) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException, BrokenMQTTFrameException {
+        int executionMode = "virtual".equals(mode)
+                ? uMQTTConfiguration.EXECUTION_VIRTUAL_THREADS
+                : uMQTTConfiguration.EXECUTION_PLATFORM_THREADS;
+        if (executionMode == uMQTTConfiguration.EXECUTION_VIRTUAL_THREADS
+                && !uMQTTThreads.hasVirtualThreads())
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+
+        mBroker = new StandInBroker();
+        mBufferPool = new uMQTTBufferPool(uMQTTConfiguration.DEFAULT_MAX_FRAME_SIZE);
+        mAllocator = new uMQTTPacketIdAllocator();
+        mConnected = new CountDownLatch(connections);
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        mConnections = new Connection[connections];
+        for (int i = 0; i < connections; ++i) {
+            mConnections[i] = new Connection();
+            mConnections[i].start(executionMode, i);
+        }
+        if (!mConnected.await(120, TimeUnit.SECONDS))
+            throw new IllegalStateException("Connections did not complete in time");
+
+        System.out.printf("%n%d connections on %s threads: connected in %d ms, "
+                        + "%d heap bytes per connection, %d live platform threads%n",
+                connections, mode,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                (usedHeap() - heapBefore) / connections,
+                ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    @Benchmark
+    public void publishRound() throws InterruptedException {
+        for (Connection connection : mConnections) connection.outbound.offer(connection.publish);
+        mEchoed.acquire(connections);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Connection connection : mConnections) connection.stop();
+        mBroker.stop();
+    }
+}
@@ -0,0 +1,107 @@
+package re.usto.umqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building outbound frames, and encoding them either as a new array ({@code getPacket()}) or
+ * into a reused buffer as the output service does. Packet ids are released right away, so
+ * the allocator never runs dry.
+ *
+ * @author gabriel
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    @Param({"1", "1000"})
+    int subscribeTopics;
+
+    private static final String TOPIC = "devices/0042/telemetry/temperature";
+    private static final byte[] PAYLOAD = new byte[256];
+
+    private uMQTTPacketIdAllocator mAllocator;
+    private String[] mTopics;
+    private byte[] mQoSLevels;
+    private ByteBuffer mBuffer;
+
+    @Setup
+    public void setUp() {
+        mAllocator = new uMQTTPacketIdAllocator();
+        mTopics = new String[subscribeTopics];
+        mQoSLevels = new byte[subscribeTopics];
+        for (int i = 0; i < subscribeTopics; ++i) {
+            mTopics[i] = "devices/" + i + "/+/temperature";
+            mQoSLevels[i] = (byte) (i % 3);
+        }
+        // Size = 64KB, big enough for the largest SUBSCRIBE here
+        mBuffer = ByteBuffer.allocate(64 * 1024);
+    }
+
+    private uMQTTFrame publish() throws BrokenMQTTFrameException {
+        uMQTTFrame.PublishBuilder builder = new uMQTTFrame.PublishBuilder()
+                .setTopic(TOPIC)
+                .setPayload(PAYLOAD)
+                .setQosLevel(1);
+        builder.setPacketIdAllocator(mAllocator);
+        uMQTTFrame frame = builder.build();
+        mAllocator.release(frame.getPacketId());
+        return frame;
+    }
+
+    @Benchmark
+    public uMQTTFrame buildPublish() throws BrokenMQTTFrameException {
+        return publish();
+    }
+
+    @Benchmark
+    public byte[] publishPacket() throws BrokenMQTTFrameException {
+        return publish().getPacket();
+    }
+
+    @Benchmark
+    public int publishEncode() throws BrokenMQTTFrameException {
+        mBuffer.clear();
+        return publish().encode(mBuffer);
+    }
+
+    @Benchmark
+    public byte[] subscribePacket() throws BrokenMQTTFrameException {
+        uMQTTFrame.SubscribeBuilder builder = new uMQTTFrame.SubscribeBuilder()
+                .setTopics(mTopics)
+                .setQoS(mQoSLevels);
+        builder.setPacketIdAllocator(mAllocator);
+        uMQTTFrame frame = builder.build();
+        mAllocator.release(frame.getPacketId());
+        return frame.getPacket();
+    }
+
+    @Benchmark
+    public byte[] connectPacket() throws BrokenMQTTFrameException {
+        return new uMQTTFrame.ConnectBuilder()
+                .setClientId("benchmark-client")
+                .setCleanSession()
+                .setUsername("user")
+                .setPassword("password")
+                .setKeepAlive((short) 60)
+                .build()
+                .getPacket();
+    }
+}
@@ -0,0 +1,207 @@
+package re.usto.umqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the publish journal brings back exactly what wasn't acknowledged, across segment
+ * rolls, deletions and compaction, and that its files stay in proportion to what is live.
+ * Runs in a scratch directory and exits with status 1 if anything is off.
+ *
+ * <pre>
+ * JournalCheck [--operations=20000] [--seed=1]
+ * </pre>
+ *
+ * @author gabriel
+ */
+
+public class JournalCheck {
+
+    // Size = 4MB, a record this big always starts a new segment
+    private static final int ROLLING_RECORD = 4 * 1024 * 1024;
+
+    private final File mDirectory;
+    private final List<String> mFailures = new ArrayList<>();
+
+    JournalCheck(File directory) {
+        mDirectory = directory;
+    }
+
+    private void fail(String format, Object... args) {
+        if (mFailures.size() < 20) mFailures.add(String.format(format, args));
+    }
+
+    private void clear() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) throw new IOException("Could not delete " + file);
+            }
+        }
+    }
+
+    private long diskUsage() {
+        long bytes = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) bytes += file.length();
+        return bytes;
+    }
+
+    /**
+     * @param expected packet ids to whether they got their PUBREC.
+     */
+    private void checkRestored(String name, uMQTTJournal journal,
+                               Map<Short, Boolean> expected) {
+        Map<Short, Boolean> restored = new LinkedHashMap<>();
+        for (uMQTTJournal.Restored record : journal.getRestored())
+            restored.put(record.packetId, record.released);
+        if (!restored.equals(expected))
+            fail("%s: restored %s, expected %s", name, restored, expected);
+    }
+
+    /**
+     * Tombstones in a segment with nothing live must stay while the publishes they cancel
+     * are kept in an older one.
+     */
+    void tombstonesOutliveTheirSegment() throws IOException {
+        clear();
+        uMQTTJournal journal = new uMQTTJournal(mDirectory);
+        journal.append((short) 1, new byte[16]);
+        journal.append((short) 3, new byte[16]);
+        journal.append((short) 2, new byte[ROLLING_RECORD]);
+        journal.remove((short) 1);
+        journal.remove((short) 2);
+        journal.append((short) 4, new byte[ROLLING_RECORD]);
+        journal.close();
+
+        Map<Short, Boolean> expected = new LinkedHashMap<>();
+        expected.put((short) 3, false);
+        expected.put((short) 4, false);
+        journal = new uMQTTJournal(mDirectory);
+        checkRestored("tombstones", journal, expected);
+        journal.close();
+    }
+
+    /**
+     * A publish held for long in the first segment, and a few more here and there, mustn't
+     * keep everything written after them on disk.
+     */
+    void diskFollowsLiveData() throws IOException {
+        clear();
+        uMQTTJournal journal = new uMQTTJournal(mDirectory);
+        Map<Short, Boolean> expected = new LinkedHashMap<>();
+        for (short id = 1; id <= 27; ++id) {
+            journal.append(id, new byte[100 * 1024]);
+            expected.put(id, false);
+        }
+        short id = 1000;
+        int next = 0;
+        for (int round = 0; round < 40; ++round) {
+            journal.append(id, new byte[1000]);
+            expected.put(id++, false);
+            for (int i = 0; i < 50; ++i) {
+                short acknowledged = (short) (20000 + next++ % 10000);
+                journal.append(acknowledged, new byte[100 * 1024]);
+                journal.remove(acknowledged);
+            }
+        }
+        journal.close();
+
+        // About 2.7MB is live: a handful of segments, however much went through
+        long usage = diskUsage();
+        if (usage > 8L * ROLLING_RECORD)
+            fail("disk: %d bytes on disk for about 2.7MB live", usage);
+        journal = new uMQTTJournal(mDirectory);
+        checkRestored("disk", journal, expected);
+        journal.close();
+    }
+
+    /**
+     * Random publishes, PUBRECs and acknowledgements of mixed sizes, reopening now and then,
+     * against what should be in flight.
+     */
+    void randomOperations(int operations, long seed) throws IOException {
+        clear();
+        Random random = new Random(seed);
+        uMQTTJournal journal = new uMQTTJournal(mDirectory);
+        Map<Short, Boolean> expected = new LinkedHashMap<>();
+        List<Short> live = new ArrayList<>();
+        for (int i = 0; i < operations; ++i) {
+            int operation = random.nextInt(100);
+            if (operation < 45 || live.isEmpty()) {
+                short id = (short) (1 + random.nextInt(500));
+                int size = random.nextInt(50) == 0
+                        ? random.nextInt(ROLLING_RECORD) : random.nextInt(2000);
+                journal.append(id, new byte[size]);
+                // A publish journaled again is taken from the start
+                expected.remove(id);
+                live.remove((Short) id);
+                expected.put(id, false);
+                live.add(id);
+            }
+            else if (operation < 55) {
+                short id = live.get(random.nextInt(live.size()));
+                journal.markReleased(id);
+                expected.put(id, true);
+            }
+            else if (operation < 99) {
+                short id = live.remove(random.nextInt(live.size()));
+                journal.remove(id);
+                expected.remove(id);
+            }
+            else {
+                journal.close();
+                journal = new uMQTTJournal(mDirectory);
+                checkRestored("random, operation " + i, journal, expected);
+            }
+        }
+        journal.close();
+        journal = new uMQTTJournal(mDirectory);
+        checkRestored("random, at the end", journal, expected);
+        journal.close();
+    }
+
+    boolean report() {
+        for (String failure : mFailures) System.out.println("FAILED: " + failure);
+        System.out.println(mFailures.isEmpty() ? "OK" : "FAILED");
+        return mFailures.isEmpty();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int operations = 20000;
+        long seed = 1;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0)
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "operations": operations = Integer.parseInt(value); break;
+                case "seed": seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+                "umqtt-journal-check-" + System.nanoTime());
+        JournalCheck check = new JournalCheck(directory);
+        boolean passed;
+        try {
+            check.tombstonesOutliveTheirSegment();
+            check.diskFollowsLiveData();
+            check.randomOperations(operations, seed);
+            passed = check.report();
+        }
+        finally {
+            check.clear();
+            if (!directory.delete()) System.err.println("Could not delete " + directory);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,297 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives publisher and subscriber sessions against a broker at a fixed rate, then reports
+ * throughput and publish to acknowledgement and publish to delivery latency percentiles. With
+ * no {@code --port} it starts the stand-in broker on loopback, so it runs anywhere.
+ *
+ * <p> Load is open loop: each publisher sends on a schedule and latencies are taken from when
+ * a publish was due, not from when it went out, so a stall is charged to every publish it
+ * held back. Every subscriber subscribes to every topic, publishers go round the topics.
+ *
+ * <pre>
+ * LoadGenerator [--rate=10000] [--payload=64] [--topics=10] [--publishers=4]
+ *               [--subscribers=4] [--qos=1] [--duration=10] [--warmup=2] [--loops=N]
+ *               [--host=127.0.0.1 --port=1883]
+ * </pre>
+ *
+ * @author gabriel
+ */
+
+public class LoadGenerator {
+
+    private final String mHost;
+    private final int mPort;
+    private final int mRate;
+    private final int mPayloadSize;
+    private final String[] mTopics;
+    private final int mPublishers;
+    private final int mSubscribers;
+    private final byte mQosLevel;
+    private final long mDuration;
+    private final long mWarmup;
+    private final int mLoops;
+
+    private final uMQTTHistogram mAckLatency = new uMQTTHistogram();
+    private final uMQTTHistogram mDeliveryLatency = new uMQTTHistogram();
+    private final AtomicLong mPublished = new AtomicLong(0);
+    private final AtomicLong mAcknowledged = new AtomicLong(0);
+    private final AtomicLong mDelivered = new AtomicLong(0);
+    // Publishes due before this (System.nanoTime()) are warm up, and aren't counted. Set
+    // before any publish goes out
+    private volatile long mMeasureFrom;
+    private volatile boolean mRunning = true;
+
+    /**
+     * A publishing session and when each of its in-flight publishes was due. Filling the
+     * slot and reading it on acknowledgement both hold the lock: the acknowledgement can come
+     * back before publish() returns the packet id.
+     */
+    private final class Publisher implements uMQTTSession.Listener, Runnable {
+
+        final int index;
+        final long[] dueAt = new long[0x10000];
+        final CountDownLatch connected;
+        uMQTTSession session;
+
+        Publisher(int index, CountDownLatch connected) {
+            this.index = index;
+            this.connected = connected;
+        }
+
+        @Override
+        public void onConnected(uMQTTSession session) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onMessage(uMQTTSession session, uMQTTMessage message) { }
+
+        @Override
+        public void onPublishCompleted(uMQTTSession session, short packetId) {
+            long now = System.nanoTime();
+            long due;
+            synchronized (this) {
+                due = dueAt[packetId & 0xffff];
+            }
+            if (due - mMeasureFrom >= 0) {
+                mAckLatency.record(now - due);
+                mAcknowledged.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onClosed(uMQTTSession session, IOException cause) {
+            if (cause != null && mRunning) System.err.println("Publisher closed: " + cause);
+        }
+
+        @Override
+        public void run() {
+            long interval = TimeUnit.SECONDS.toNanos(1) * mPublishers / mRate;
+            long start = System.nanoTime() + interval * index / mPublishers;
+            for (long sent = 0; mRunning; ++sent) {
+                long due = start + sent * interval;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+
+                byte[] payload = new byte[mPayloadSize];
+                ByteBuffer.wrap(payload).putLong(due);
+                String topic = mTopics[(int) ((sent * mPublishers + index) % mTopics.length)];
+                synchronized (this) {
+                    short packetId = session.publish(topic, payload, mQosLevel);
+                    dueAt[packetId & 0xffff] = due;
+                }
+                if (due - mMeasureFrom >= 0) mPublished.incrementAndGet();
+            }
+        }
+    }
+
+    private final class Subscriber implements uMQTTSession.Listener {
+
+        final CountDownLatch connected;
+
+        Subscriber(CountDownLatch connected) {
+            this.connected = connected;
+        }
+
+        @Override
+        public void onConnected(uMQTTSession session) {
+            for (String topic : mTopics) session.subscribe(topic, mQosLevel);
+            // SUBACKs aren't surfaced; the broker handles frames in order, so anything we
+            // publish after this one comes back is routed to us
+            session.publish(mTopics[0], new byte[8], (byte) 1);
+        }
+
+        @Override
+        public void onMessage(uMQTTSession session, uMQTTMessage message) {
+            long now = System.nanoTime();
+            ByteBuffer payload = message.getPayload();
+            long due = payload.getLong(payload.position());
+            if (due != 0 && due - mMeasureFrom >= 0) {
+                mDeliveryLatency.record(now - due);
+                mDelivered.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onPublishCompleted(uMQTTSession session, short packetId) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onClosed(uMQTTSession session, IOException cause) {
+            if (cause != null && mRunning) System.err.println("Subscriber closed: " + cause);
+        }
+    }
+
+    LoadGenerator(String host, int port, int rate, int payloadSize, int topics, int publishers,
+                  int subscribers, byte qosLevel, int duration, int warmup, int loops) {
+        if (rate < 1 || topics < 1 || publishers < 1 || subscribers < 0 || duration < 1
+                || warmup < 0 || loops < 1)
+            throw new IllegalArgumentException("Counts, rate and duration must be positive");
+        if (payloadSize < 8)
+            throw new IllegalArgumentException("Payload must fit a timestamp, 8 bytes");
+        if (qosLevel < 0 || qosLevel > 2)
+            throw new IllegalArgumentException("QoS must be 0, 1 or 2");
+        mHost = host;
+        mPort = port;
+        mRate = rate;
+        mPayloadSize = payloadSize;
+        mTopics = new String[topics];
+        for (int i = 0; i < topics; ++i) mTopics[i] = "load/" + i;
+        mPublishers = publishers;
+        mSubscribers = subscribers;
+        mQosLevel = qosLevel;
+        mDuration = TimeUnit.SECONDS.toNanos(duration);
+        mWarmup = TimeUnit.SECONDS.toNanos(warmup);
+        mLoops = loops;
+    }
+
+    void run() throws IOException, InterruptedException {
+        uMQTTEventLoopGroup group = new uMQTTEventLoopGroup(mLoops);
+        CountDownLatch connected = new CountDownLatch(mPublishers + mSubscribers);
+
+        uMQTTSession[] subscribers = new uMQTTSession[mSubscribers];
+        for (int i = 0; i < mSubscribers; ++i) {
+            subscribers[i] = group.connect(mHost, mPort, "load-sub-" + i, (short) 60,
+                    new Subscriber(connected));
+        }
+        Publisher[] publishers = new Publisher[mPublishers];
+        for (int i = 0; i < mPublishers; ++i) {
+            publishers[i] = new Publisher(i, connected);
+            publishers[i].session = group.connect(mHost, mPort, "load-pub-" + i, (short) 60,
+                    publishers[i]);
+        }
+        if (!connected.await(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("Sessions did not connect in time");
+
+        mMeasureFrom = System.nanoTime() + mWarmup;
+        Thread[] threads = new Thread[mPublishers];
+        for (int i = 0; i < mPublishers; ++i) {
+            threads[i] = new Thread(publishers[i], "load-publisher-" + i);
+            threads[i].start();
+        }
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(mWarmup + mDuration));
+        long measureTo = System.nanoTime();
+        mRunning = false;
+        for (Thread thread : threads) thread.join();
+
+        // Give what's still in flight a moment to land
+        long published = mPublished.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline
+                && (mQosLevel > 0 && mAcknowledged.get() < published
+                || mDelivered.get() < published * mSubscribers)) {
+            Thread.sleep(10);
+        }
+
+        report(published, (measureTo - mMeasureFrom) / 1e9);
+        for (Publisher publisher : publishers) publisher.session.close();
+        for (uMQTTSession subscriber : subscribers) subscriber.close();
+        Thread.sleep(100);
+        group.shutdown();
+    }
+
+    private void report(long published, double seconds) {
+        System.out.printf(Locale.US, "%d publishers, %d subscribers, %d topics, %d byte "
+                        + "payloads at QoS %d, %d/s asked for %.1f s%n",
+                mPublishers, mSubscribers, mTopics.length, mPayloadSize, mQosLevel, mRate,
+                seconds);
+        System.out.printf(Locale.US, "published %d (%.0f/s)%n", published, published / seconds);
+        if (mQosLevel > 0) report("publish -> ack", mAckLatency, published, seconds);
+        if (mSubscribers > 0)
+            report("publish -> delivery", mDeliveryLatency, published * mSubscribers, seconds);
+    }
+
+    private static void report(String name, uMQTTHistogram latency, long expected,
+                               double seconds) {
+        long count = latency.getCount();
+        System.out.printf(Locale.US, "%-20s %d of %d (%.0f/s)  p50 %s  p99 %s  p99.9 %s  "
+                        + "max %s%n",
+                name, count, expected, count / seconds,
+                micros(latency.getValueAtPercentile(50)),
+                micros(latency.getValueAtPercentile(99)),
+                micros(latency.getValueAtPercentile(99.9)),
+                micros(latency.getMax()));
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.1fus", nanos / 1000.0);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = "127.0.0.1";
+        int port = -1;
+        int rate = 10000;
+        int payloadSize = 64;
+        int topics = 10;
+        int publishers = 4;
+        int subscribers = 4;
+        int qosLevel = 1;
+        int duration = 10;
+        int warmup = 2;
+        int loops = Runtime.getRuntime().availableProcessors();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0)
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "host": host = value; break;
+                case "port": port = Integer.parseInt(value); break;
+                case "rate": rate = Integer.parseInt(value); break;
+                case "payload": payloadSize = Integer.parseInt(value); break;
+                case "topics": topics = Integer.parseInt(value); break;
+                case "publishers": publishers = Integer.parseInt(value); break;
+                case "subscribers": subscribers = Integer.parseInt(value); break;
+                case "qos": qosLevel = Integer.parseInt(value); break;
+                case "duration": duration = Integer.parseInt(value); break;
+                case "warmup": warmup = Integer.parseInt(value); break;
+                case "loops": loops = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        StandInBroker broker = null;
+        if (port < 0) {
+            broker = new StandInBroker();
+            port = broker.getPort();
+        }
+        try {
+            new LoadGenerator(host, port, rate, payloadSize, topics, publishers, subscribers,
+                    (byte) qosLevel, duration, warmup, loops).run();
+        }
+        finally {
+            if (broker != null) broker.stop();
+        }
+    }
+}
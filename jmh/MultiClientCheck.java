@@ -0,0 +1,255 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several clients at once against the stand-in broker and checks they stay independent:
+ * each gets exactly its own messages back, in order and intact, hands out its own packet ids
+ * and is acknowledged only for those. Clients are spread over several event loops and publish
+ * from their own threads, at QoS 0 to 2, with payloads from a few bytes to several reads
+ * long, so decoders are cut off mid frame while others are busy. Exits with status 1 if
+ * anything is off.
+ *
+ * <pre>
+ * MultiClientCheck [--clients=8] [--messages=2000] [--loops=4]
+ * </pre>
+ *
+ * @author gabriel
+ */
+
+public class MultiClientCheck {
+
+    // Size = 40KB, bigger than a single read of the decoder
+    private static final int MAX_PAYLOAD = 40 * 1024;
+    // Packet ids taken before the first message: SUBSCRIBE, then the publish telling us
+    // the subscription is in place
+    private static final int IDS_BEFORE_MESSAGES = 2;
+
+    private final int mMessages;
+    private final List<String> mFailures = new ArrayList<>();
+
+    private final class Client implements uMQTTSession.Listener, Runnable {
+
+        final int index;
+        final byte qosLevel;
+        final String topic;
+        final CountDownLatch ready;
+        final CountDownLatch done;
+        final AtomicInteger received = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+        // Packet ids this client got for its messages, by message
+        final short[] packetIds;
+        uMQTTSession session;
+
+        Client(int index, CountDownLatch ready, CountDownLatch done) {
+            this.index = index;
+            this.qosLevel = (byte) (index % 3);
+            this.topic = "clients/" + index + "/messages";
+            this.ready = ready;
+            this.done = done;
+            this.packetIds = new short[mMessages];
+        }
+
+        @Override
+        public void onConnected(uMQTTSession session) {
+            session.subscribe(topic, qosLevel);
+            // Acknowledged only once the broker went through the SUBSCRIBE before it
+            session.publish("clients/" + index + "/ready", new byte[1], (byte) 1);
+        }
+
+        @Override
+        public void onMessage(uMQTTSession session, uMQTTMessage message) {
+            int sequence = received.getAndIncrement();
+            if (!topic.equals(message.getTopic())) {
+                fail("client %d got a message for %s", index, message.getTopic());
+                return;
+            }
+            ByteBuffer payload = message.getPayload();
+            int from = payload.getInt(payload.position());
+            int number = payload.getInt(payload.position() + 4);
+            if (from != index || number != sequence) {
+                fail("client %d got message %d of client %d as its message %d",
+                        index, number, from, sequence);
+            }
+            else if (payload.remaining() != payloadSize(index, number)) {
+                fail("client %d got %d bytes for message %d, %d were sent", index,
+                        payload.remaining(), number, payloadSize(index, number));
+            }
+            else {
+                for (int i = 8; i < payload.remaining(); ++i) {
+                    if (payload.get(payload.position() + i) != fill(index, number, i)) {
+                        fail("client %d message %d is damaged at byte %d", index, number, i);
+                        break;
+                    }
+                }
+            }
+            if (sequence == mMessages - 1) done.countDown();
+        }
+
+        @Override
+        public void onPublishCompleted(uMQTTSession session, short packetId) {
+            int count = completed.getAndIncrement();
+            // The first acknowledgement is for the ready publish
+            if (count == 0) {
+                ready.countDown();
+                return;
+            }
+            int expected = (count - 1) + IDS_BEFORE_MESSAGES + 1;
+            if (qosLevel == 0 || packetId != (short) expected) {
+                fail("client %d got acknowledgement %d for packet id %d, expected id %d",
+                        index, count, packetId & 0xffff, expected);
+            }
+        }
+
+        @Override
+        public void onClosed(uMQTTSession session, IOException cause) {
+            if (cause != null) fail("client %d closed: %s", index, cause);
+        }
+
+        @Override
+        public void run() {
+            for (int number = 0; number < mMessages; ++number) {
+                byte[] payload = new byte[payloadSize(index, number)];
+                ByteBuffer.wrap(payload).putInt(index).putInt(number);
+                for (int i = 8; i < payload.length; ++i) payload[i] = fill(index, number, i);
+                packetIds[number] = session.publish(topic, payload, qosLevel);
+            }
+        }
+
+        /**
+         * Ids come from the client's own allocator only: the n-th id it takes is n, whatever
+         * the other clients do. QoS 0 publishes take one and give it back right away.
+         */
+        void checkPacketIds() {
+            for (int number = 0; number < mMessages; ++number) {
+                int expected = qosLevel == 0 ? 0 : number + IDS_BEFORE_MESSAGES + 1;
+                if (packetIds[number] != (short) expected) {
+                    fail("client %d got packet id %d for message %d, expected %d", index,
+                            packetIds[number] & 0xffff, number, expected);
+                    return;
+                }
+            }
+            int acknowledged = completed.get() - 1;
+            if (qosLevel != 0 && acknowledged != mMessages)
+                fail("client %d got %d of %d acknowledgements", index, acknowledged, mMessages);
+        }
+    }
+
+    MultiClientCheck(int messages) {
+        if (messages < 1 || messages > 60000)
+            throw new IllegalArgumentException("Messages must be between 1 and 60000");
+        mMessages = messages;
+    }
+
+    private static int payloadSize(int client, int number) {
+        // Mostly small, with a big one now and then
+        int seed = (client * 31 + number) * 0x9E3779B1;
+        seed ^= seed >>> 15;
+        return (number % 17 == 0) ? 8 + (seed & 0x7fffffff) % MAX_PAYLOAD
+                : 8 + (seed & 0x7fffffff) % 200;
+    }
+
+    private static byte fill(int client, int number, int i) {
+        return (byte) (client * 7 + number * 13 + i);
+    }
+
+    private synchronized void fail(String format, Object... args) {
+        // One client gone wrong can fail thousands of times, the first few say enough
+        if (mFailures.size() < 20) mFailures.add(String.format(format, args));
+    }
+
+    private synchronized List<String> getFailures() {
+        return new ArrayList<>(mFailures);
+    }
+
+    boolean run(int port, int clients, int loops) throws IOException, InterruptedException {
+        uMQTTEventLoopGroup group = new uMQTTEventLoopGroup(loops);
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch done = new CountDownLatch(clients);
+        Client[] all = new Client[clients];
+        try {
+            for (int i = 0; i < clients; ++i) {
+                all[i] = new Client(i, ready, done);
+                all[i].session = group.connect("127.0.0.1", port, "multi-client-" + i,
+                        (short) 60, all[i]);
+            }
+            if (!ready.await(30, TimeUnit.SECONDS)) {
+                fail("clients did not connect and subscribe in time");
+                return report(all);
+            }
+
+            Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; ++i) {
+                threads[i] = new Thread(all[i], "multi-client-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) thread.join();
+            if (!done.await(60, TimeUnit.SECONDS))
+                fail("not every client got its messages back in time");
+
+            // Acknowledgements of the last messages may still be on their way
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            for (Client client : all) {
+                while (client.qosLevel != 0 && client.completed.get() <= mMessages
+                        && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+            for (Client client : all) client.checkPacketIds();
+            return report(all);
+        }
+        finally {
+            for (Client client : all) if (client != null) client.session.close();
+            Thread.sleep(100);
+            group.shutdown();
+        }
+    }
+
+    private boolean report(Client[] all) {
+        for (Client client : all) {
+            if (client == null) continue;
+            System.out.printf("client %d (QoS %d): %d of %d received, %d acknowledged%n",
+                    client.index, client.qosLevel, client.received.get(), mMessages,
+                    Math.max(0, client.completed.get() - 1));
+        }
+        List<String> failures = getFailures();
+        for (String failure : failures) System.out.println("FAILED: " + failure);
+        System.out.println(failures.isEmpty() ? "OK" : "FAILED");
+        return failures.isEmpty();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = 8;
+        int messages = 2000;
+        int loops = 4;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0)
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "clients": clients = Integer.parseInt(value); break;
+                case "messages": messages = Integer.parseInt(value); break;
+                case "loops": loops = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+
+        StandInBroker broker = new StandInBroker();
+        boolean passed;
+        try {
+            passed = new MultiClientCheck(messages).run(broker.getPort(), clients, loops);
+        }
+        finally {
+            broker.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
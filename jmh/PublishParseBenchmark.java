@@ -0,0 +1,62 @@
+package re.usto.umqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a received PUBLISH: the message view the input service builds, and the copy made
+ * of it for callbacks that keep it, each taking the topic and payload out as a subscription
+ * callback would.
+ *
+ * @author gabriel
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishParseBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576"})
+    int payloadSize;
+
+    private byte[] mPacket;
+
+    @Setup
+    public void setUp() throws BrokenMQTTFrameException {
+        uMQTTFrame.PublishBuilder builder = new uMQTTFrame.PublishBuilder()
+                .setTopic("devices/0042/telemetry/temperature")
+                .setPayload(new byte[payloadSize])
+                .setQosLevel(1);
+        builder.setPacketIdAllocator(new uMQTTPacketIdAllocator());
+        mPacket = builder.build().getPacket();
+    }
+
+    @Benchmark
+    public void messageView(Blackhole blackhole) {
+        uMQTTMessage message = new uMQTTMessage(mPacket, 0, mPacket.length);
+        blackhole.consume(message.getTopic());
+        blackhole.consume(message.getPayload());
+    }
+
+    @Benchmark
+    public void messageCopy(Blackhole blackhole) {
+        uMQTTMessage message = new uMQTTMessage(mPacket, 0, mPacket.length).copy();
+        blackhole.consume(message.getTopic());
+        blackhole.consume(message.getPayload());
+    }
+}
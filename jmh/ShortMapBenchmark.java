@@ -0,0 +1,96 @@
+package re.usto.umqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-flight table workload: a sliding window of packet ids, where each new id is put, looked
+ * up as its ack arrives and removed. uMQTTShortMap against a boxed ConcurrentHashMap.
+ *
+ * @author gabriel
+ */
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShortMapBenchmark {
+
+    @Param({"16", "1024", "16384"})
+    int inFlight;
+
+    private static final Object VALUE = new Object();
+
+    private uMQTTShortMap<Object> mShortMap;
+    private ConcurrentHashMap<Short, Object> mBaseline;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mShortMap = new uMQTTShortMap<>();
+        mBaseline = new ConcurrentHashMap<>();
+        for (int id = 1; id <= inFlight; ++id) {
+            mShortMap.put((short) id, VALUE);
+            mBaseline.put((short) id, VALUE);
+        }
+        mNext = inFlight + 1;
+    }
+
+    private static short toPacketId(int sequence) {
+        return (short) ((sequence % 0xffff) + 1);
+    }
+
+    private short nextId() {
+        return toPacketId(mNext++);
+    }
+
+    private short oldestId() {
+        return toPacketId(mNext - 1 - inFlight);
+    }
+
+    @Benchmark
+    @Group("shortMap")
+    @GroupThreads(1)
+    public Object shortMapPublish() {
+        mShortMap.put(nextId(), VALUE);
+        return mShortMap.remove(oldestId());
+    }
+
+    @Benchmark
+    @Group("shortMap")
+    @GroupThreads(2)
+    public Object shortMapAck() {
+        return mShortMap.get(toPacketId(mNext - inFlight / 2));
+    }
+
+    @Benchmark
+    @Group("concurrentHashMap")
+    @GroupThreads(1)
+    public Object concurrentHashMapPublish() {
+        mBaseline.put(nextId(), VALUE);
+        return mBaseline.remove(oldestId());
+    }
+
+    @Benchmark
+    @Group("concurrentHashMap")
+    @GroupThreads(2)
+    public Object concurrentHashMapAck() {
+        return mBaseline.get(toPacketId(mNext - inFlight / 2));
+    }
+}
@@ -0,0 +1,375 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Minimal MQTT 3.1.1 broker on the loopback interface, just enough protocol for benchmarks
+ * and load tests to talk to. CONNECT, PINGREQ, SUBSCRIBE, UNSUBSCRIBE and QoS 0 to 2
+ * publishes are acknowledged, and publishes are routed to every connection subscribed to a
+ * matching filter (wildcards included) at the lower of both QoS levels. Acknowledgements
+ * from subscribers are taken as they come, nothing is resent and nothing is kept across
+ * connections.
+ *
+ * @author gabriel
+ */
+
+class StandInBroker implements Runnable {
+
+    // Size = 16KB, frames in benchmarks are way smaller, and it grows for the ones that
+    // aren't. Direct, so it stays out of the heap figures benchmarks take for the client
+    private static final int BUFFER_LENGTH = 16 * 1024;
+
+    private final ServerSocketChannel mServer;
+    private final Selector mSelector;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    // Filter to the connections subscribed to it and their granted QoS. Broker thread only
+    private final HashMap<String, HashMap<Connection, Byte>> mSubscriptions = new HashMap<>();
+
+    private static final class Connection {
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_LENGTH);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        final ArrayList<String> filters = new ArrayList<>();
+        int nextPacketId = 0;
+
+        Connection(SelectionKey key) {
+            this.key = key;
+        }
+
+        short nextPacketId() {
+            nextPacketId = nextPacketId % 0xffff + 1;
+            return (short) nextPacketId;
+        }
+    }
+
+    StandInBroker() throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+        mServer.configureBlocking(false);
+        mSelector = Selector.open();
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = new Thread(this, "stand-in-broker");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    void stop() throws IOException {
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (mRunning) {
+                mSelector.select();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) accept();
+                        else {
+                            if (key.isReadable()) read(key);
+                            if (key.isValid() && key.isWritable()) write(key);
+                        }
+                    }
+                    catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+            for (SelectionKey key : mSelector.keys()) key.channel().close();
+            mSelector.close();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Stand-in broker failed", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new Connection(key));
+        }
+    }
+
+    private void close(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection != null) {
+            for (String filter : connection.filters) unsubscribe(connection, filter);
+            connection.filters.clear();
+        }
+        key.cancel();
+        key.channel().close();
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        int read = channel.read(connection.in);
+        if (read == -1) throw new IOException("Closed");
+
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 2) {
+            int start = in.position();
+            int remaining = 0;
+            int multiplier = 1;
+            int i = start + 1;
+            boolean complete = false;
+            for (; i < in.limit() && i <= start + 4; ++i) {
+                int digit = in.get(i);
+                remaining += (digit & 0x7f) * multiplier;
+                multiplier *= 0x80;
+                if ((digit & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete) break;
+            int headerSize = i + 1 - start;
+            if (in.remaining() < headerSize + remaining) {
+                if (headerSize + remaining > in.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocateDirect(headerSize + remaining);
+                    bigger.put(in);
+                    connection.in = bigger;
+                    write(key);
+                    return;
+                }
+                break;
+            }
+
+            onFrame(key, connection, in, start, headerSize, remaining);
+            if (!key.isValid()) return;
+            in.position(start + headerSize + remaining);
+        }
+        in.compact();
+        write(key);
+    }
+
+    private void onFrame(SelectionKey key, Connection connection, ByteBuffer in, int start,
+                         int headerSize, int remaining) throws IOException {
+        int header = in.get(start) & 0xff;
+        int body = start + headerSize;
+        switch (header >> 4) {
+            case uMQTTFrame.MQ_CONNECT:
+                connection.out.add(ByteBuffer.wrap(new byte[]{0x20, 0x02, 0x00, 0x00}));
+                break;
+            case uMQTTFrame.MQ_PINGREQ:
+                connection.out.add(ByteBuffer.wrap(new byte[]{(byte) 0xd0, 0x00}));
+                break;
+            case uMQTTFrame.MQ_SUBSCRIBE:
+            case uMQTTFrame.MQ_UNSUBSCRIBE:
+                boolean subscribe = (header >> 4) == uMQTTFrame.MQ_SUBSCRIBE;
+                ArrayList<Byte> granted = new ArrayList<>();
+                for (int i = body + 2; i < body + remaining; ) {
+                    int length = ((in.get(i) & 0xff) << 8) | (in.get(i + 1) & 0xff);
+                    String filter = string(in, i + 2, length);
+                    i += 2 + length;
+                    if (subscribe) {
+                        byte qos = (byte) Math.min(in.get(i++) & 0b11, 2);
+                        subscribe(connection, filter, qos);
+                        granted.add(qos);
+                    }
+                    else {
+                        unsubscribe(connection, filter);
+                        connection.filters.remove(filter);
+                    }
+                }
+                ByteBuffer ack = ByteBuffer.allocate(4 + granted.size());
+                ack.put((byte) (subscribe ? 0x90 : 0xb0))
+                        .put((byte) (2 + granted.size()))
+                        .put(in.get(body)).put(in.get(body + 1));
+                for (Byte qos : granted) ack.put(qos);
+                ack.flip();
+                connection.out.add(ack);
+                break;
+            case uMQTTFrame.MQ_PUBLISH:
+                int qos = (header >> 1) & 0b11;
+                int topicLength = ((in.get(body) & 0xff) << 8) | (in.get(body + 1) & 0xff);
+                int payloadStart = body + 2 + topicLength + (qos > 0 ? 2 : 0);
+                if (qos > 0) {
+                    int packetId = body + 2 + topicLength;
+                    connection.out.add(ByteBuffer.wrap(new byte[]{
+                            (byte) (qos == 1 ? 0x40 : 0x50), 0x02,
+                            in.get(packetId), in.get(packetId + 1)}));
+                }
+                route(in, body, topicLength, payloadStart, body + remaining - payloadStart, qos);
+                break;
+            case uMQTTFrame.MQ_PUBREC:
+                // Our delivery at QoS 2 reached the subscriber, release it
+                connection.out.add(ByteBuffer.wrap(new byte[]{
+                        0x62, 0x02, in.get(body), in.get(body + 1)}));
+                break;
+            case uMQTTFrame.MQ_PUBREL:
+                connection.out.add(ByteBuffer.wrap(new byte[]{
+                        0x70, 0x02, in.get(body), in.get(body + 1)}));
+                break;
+            case uMQTTFrame.MQ_DISCONNECT:
+                close(key);
+                break;
+            default:
+                // PUBACK and PUBCOMP for our deliveries, nothing to do
+                break;
+        }
+    }
+
+    private void subscribe(Connection connection, String filter, byte qos) {
+        HashMap<Connection, Byte> subscribers = mSubscriptions.get(filter);
+        if (subscribers == null) {
+            subscribers = new HashMap<>();
+            mSubscriptions.put(filter, subscribers);
+        }
+        if (subscribers.put(connection, qos) == null) connection.filters.add(filter);
+    }
+
+    private void unsubscribe(Connection connection, String filter) {
+        HashMap<Connection, Byte> subscribers = mSubscriptions.get(filter);
+        if (subscribers == null || subscribers.remove(connection) == null) return;
+        if (subscribers.isEmpty()) mSubscriptions.remove(filter);
+    }
+
+    /**
+     * Hands a publish to every connection with a matching subscription. A connection matching
+     * through several filters gets it once, at the highest QoS granted to it.
+     */
+    private void route(ByteBuffer in, int body, int topicLength, int payloadStart,
+                       int payloadLength, int qos) throws IOException {
+        String topic = string(in, body + 2, topicLength);
+        HashMap<Connection, Integer> targets = null;
+        for (Map.Entry<String, HashMap<Connection, Byte>> entry : mSubscriptions.entrySet()) {
+            if (!matches(entry.getKey(), topic)) continue;
+            if (targets == null) targets = new HashMap<>();
+            for (Map.Entry<Connection, Byte> subscriber : entry.getValue().entrySet()) {
+                Integer current = targets.get(subscriber.getKey());
+                int delivery = Math.min(qos, subscriber.getValue());
+                if (current == null || current < delivery)
+                    targets.put(subscriber.getKey(), delivery);
+            }
+        }
+        if (targets == null) return;
+
+        ByteBuffer atMostOnce = null;
+        for (Map.Entry<Connection, Integer> target : targets.entrySet()) {
+            Connection connection = target.getKey();
+            int delivery = target.getValue();
+            if (delivery == 0) {
+                if (atMostOnce == null)
+                    atMostOnce = delivery(in, body, topicLength, payloadStart, payloadLength,
+                            0, (short) 0);
+                connection.out.add(atMostOnce.duplicate());
+            }
+            else {
+                connection.out.add(delivery(in, body, topicLength, payloadStart, payloadLength,
+                        delivery, connection.nextPacketId()));
+            }
+            try {
+                write(connection.key);
+            }
+            catch (IOException e) {
+                // Their problem, not the sender's
+                close(connection.key);
+            }
+        }
+    }
+
+    private static ByteBuffer delivery(ByteBuffer in, int body, int topicLength,
+                                       int payloadStart, int payloadLength, int qos,
+                                       short packetId) {
+        int remaining = 2 + topicLength + (qos > 0 ? 2 : 0) + payloadLength;
+        ByteBuffer frame = ByteBuffer.allocate(
+                1 + uMQTTFrame.encodedRemainingSizeLength(remaining) + remaining);
+        frame.put((byte) (0x30 | (qos << 1)));
+        uMQTTFrame.writeRemainingSize(frame, remaining);
+        for (int i = body; i < body + 2 + topicLength; ++i) frame.put(in.get(i));
+        if (qos > 0) frame.putShort(packetId);
+        for (int i = payloadStart; i < payloadStart + payloadLength; ++i) frame.put(in.get(i));
+        frame.flip();
+        return frame;
+    }
+
+    private static String string(ByteBuffer in, int start, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) bytes[i] = in.get(start + i);
+        return new String(bytes, uMQTTMessage.UTF_8);
+    }
+
+    /**
+     * Topic filter matching as in section 4.7 of the spec: {@code +} takes one level,
+     * {@code #} the rest including the parent level, and neither matches topics starting
+     * with {@code $}.
+     */
+    static boolean matches(String filter, String topic) {
+        if (filter.equals(topic)) return true;
+        if (topic.startsWith("$")
+                && (filter.startsWith("+") || filter.startsWith("#"))) return false;
+
+        int f = 0;
+        int t = 0;
+        while (true) {
+            int filterEnd = filter.indexOf('/', f);
+            if (filterEnd < 0) filterEnd = filter.length();
+            int topicEnd = topic.indexOf('/', t);
+            if (topicEnd < 0) topicEnd = topic.length();
+            int level = filterEnd - f;
+
+            if (level == 1 && filter.charAt(f) == '#') return true;
+            boolean any = level == 1 && filter.charAt(f) == '+';
+            if (!any && (level != topicEnd - t || !filter.regionMatches(f, topic, t, level)))
+                return false;
+
+            boolean filterDone = filterEnd == filter.length();
+            boolean topicDone = topicEnd == topic.length();
+            if (filterDone || topicDone) {
+                // "a/#" also matches "a"
+                return filterDone == topicDone
+                        || (topicDone && filter.length() - filterEnd == 2
+                        && filter.charAt(filterEnd + 1) == '#');
+            }
+            f = filterEnd + 1;
+            t = topicEnd + 1;
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        if (!key.isValid()) return;
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        while (!connection.out.isEmpty()) {
+            ByteBuffer buffer = connection.out.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+}
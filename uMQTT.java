@@ -1,107 +1,175 @@
 package re.usto.umqtt;
 
 import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
 
 import com.birbit.android.jobqueue.JobManager;
 import com.birbit.android.jobqueue.config.Configuration;
-import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
 import com.firebase.jobdispatcher.GooglePlayDriver;
-import com.firebase.jobdispatcher.Job;
-import com.firebase.jobdispatcher.Lifetime;
-import com.firebase.jobdispatcher.RetryStrategy;
-import com.firebase.jobdispatcher.Trigger;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import re.usto.umqtt.utils.NetworkJobService;
-import re.usto.umqtt.utils.PingService;
 import timber.log.Timber;
 
 /**
+ * MQTT client. Most apps need a single one, set up with {@link #init} and reached through
+ * {@link #getInstance()}. Any number of independent clients can be made with
+ * {@link #create}, e.g. one per broker: they share no connection state, and each keeps its
+ * persisted state apart, named after its client id.
+ *
  * @author gabriel
  */
 
 public class uMQTT {
 
-    private static uMQTT mInstance;
-    private static Context mApplicationContext;
+    private static volatile uMQTT mInstance;
+    // Every live client, by id. Jobs scheduled by the system find their client here
+    private static final ConcurrentHashMap<String, uMQTT> mClients = new ConcurrentHashMap<>();
+    private final Context mApplicationContext;
+    private final uMQTTInputService mInputService;
+    private final uMQTTOutputService mOutputService;
+    // Null when callbacks run on the reading thread
+    private final uMQTTDispatcher mDispatcher;
+    private final uMQTTMetrics mMetrics = new uMQTTMetrics(this);
+    private final uMQTTInterceptors mInterceptors = new uMQTTInterceptors();
+    private final uMQTTKeepAlive mKeepAlive = new uMQTTKeepAlive(this);
+    private final uMQTTConnection mConnection = new uMQTTConnection(this);
     private FirebaseJobDispatcher mJobDispatcher;
     private JobManager mJobManager;
-    private Socket mSocket;
+    private uMQTTTransport mTransport;
     private HashMap<String, uMQTTSubscription> mSubscriptions;
-    private HashMap<Short, String[]> mUnhandledUnsubscriptions;
-    private HashMap<Short, uMQTTPublish> mUnsentPublishes;
-    private HashMap<Short, uMQTTPublish> mUnhandledPublishes;
+    private final uMQTTTopicTree mSubscriptionTree = new uMQTTTopicTree();
+    private final uMQTTShortMap<String[]> mUnhandledUnsubscriptions = new uMQTTShortMap<>();
+    private final uMQTTShortMap<uMQTTPublish> mUnsentPublishes = new uMQTTShortMap<>();
+    // Inbound QoS 2 publishes already delivered, until their PUBREL comes
+    private uMQTTPacketIdSet mAwaitingRelease;
     private List<uMQTTSubscription> mSubscriptionsAwaitingResponse;
     private ArrayList<uMQTTSubscription> mSubscriptionFrames;
     private boolean mConnectedToBroker = false;
     private uMQTTConfiguration mConfiguration;
-    private Lock mPublishLock;
-
+    private Lock mPublishLock = new ReentrantLock();
+    // QoS 1/2 publishes waiting for room in the in-flight window, guarded by mPublishLock
+    private final ArrayDeque<uMQTTPublish> mPendingPublishes = new ArrayDeque<>();
+    private volatile int mInFlightPublishes = 0;
+    private volatile boolean mPublishWindowFull = false;
+    private OnPublishWindowListener mOnPublishWindowListener;
+    private uMQTTPacketIdAllocator mPacketIdAllocator;
+    private uMQTTJournal mJournal;
+    private volatile boolean mDestroyed = false;
+
+    // Earlier versions pinged from a recurring job, cancelled in case one is still around
     private static final String JS_PING_JOB = "pingJob";
-
-    static final String ACTION_CONNECT =
-            "re.usto.umqtt.CONNECT";
-
-    static final String ACTION_DISCONNECT =
-            "re.usto.umqtt.DISCONNECT";
-
-    static final String ACTION_SUBSCRIBE =
-            "re.usto.umqtt.SUBSCRIBE";
-
-    static final String ACTION_UNSUBSCRIBE =
-            "re.usto.umqtt.UNSUBSCRIBE";
-
-    static final String ACTION_PING =
-            "re.usto.umqtt.PING";
-
-    static final String ACTION_PUBLISH =
-            "re.usto.umqtt.PUBLISH";
-
-    static final String ACTION_FORWARD_PUBLISH =
-            "re.usto.umqtt.FORWARD_PUBLISH";
-
-    static final String EXTRA_CLIENT_ID = "extraClientId";
-    static final String EXTRA_USERNAME = "extraUsername";
-    static final String EXTRA_PASSWORD = "extraPassword";
-    static final String EXTRA_TOPIC = "extraTopic";
-    static final String EXTRA_TOPICS = "extraTopics";
-    static final String EXTRA_TOPIC_QOS = "extraTopicQoS";
-    static final String EXTRA_TOPICS_QOS = "extraTopicsQoS";
-    static final String EXTRA_PACKET_ID = "extraPacketId";
-    static final String EXTRA_FRAME_TYPE = "extraPacketType";
+    private static final String JOB_MANAGER_ID = "umqtt-jobs";
 
     private static final String PREFS_FILE = "re.usto.umqtt.PREFS";
     private static final String PREF_PACKET_ID = "re.usto.umqtt.PACKET_ID";
-
-    static final int DEFAULT_KEEP_ALIVE = 180;
+    private static final String JOURNAL_DIRECTORY = "umqtt-journal";
+    private static final String INBOUND_STATE_FILE = "umqtt-inbound";
+
+    /**
+     * Name for something this client keeps outside of memory (files, preferences, jobs), so
+     * clients don't step on each other's.
+     */
+    private String storageName(String base) {
+        try {
+            return base + "-" + URLEncoder.encode(mConfiguration.getClientId(), "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
     private uMQTT(Context context, uMQTTConfiguration configuration) {
         mApplicationContext = context.getApplicationContext();
+        mConfiguration = configuration;
+        mInputService = new uMQTTInputService(this);
+        mOutputService = new uMQTTOutputService(this);
+        mDispatcher = configuration.getDispatchThreads() > 0
+                ? new uMQTTDispatcher(this, mInputService, configuration.getDispatchThreads())
+                : null;
         mJobDispatcher = new FirebaseJobDispatcher(new GooglePlayDriver(context));
         mJobManager = new JobManager(
-                new Configuration.Builder(context).build()
+                new Configuration.Builder(context).id(storageName(JOB_MANAGER_ID)).build()
         );
-        mConfiguration = configuration;
+        mPacketIdAllocator = new uMQTTPacketIdAllocator(
+                mApplicationContext.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE),
+                storageName(PREF_PACKET_ID));
+        if (configuration.shouldPersistPublishes()) restoreJournal();
+        mAwaitingRelease = openInboundState(configuration.shouldPersistInboundState());
 
-        scheduleSocketOpening();
+        mConnection.connect();
+    }
+
+    private uMQTTPacketIdSet openInboundState(boolean persist) {
+        if (persist) {
+            try {
+                return new uMQTTPacketIdSet(
+                        new File(mApplicationContext.getFilesDir(),
+                                storageName(INBOUND_STATE_FILE)));
+            }
+            catch (IOException e) {
+                Timber.e(e, "Could not open inbound state, it won't be persisted");
+            }
+        }
+        return new uMQTTPacketIdSet();
+    }
+
+    /**
+     * Opens the publish journal and puts whatever it still holds back in flight, to be sent
+     * again once connected.
+     */
+    private void restoreJournal() {
+        try {
+            mJournal = new uMQTTJournal(
+                    new File(mApplicationContext.getFilesDir(), storageName(JOURNAL_DIRECTORY)));
+        }
+        catch (IOException e) {
+            Timber.e(e, "Could not open publish journal, publishes won't be persisted");
+            return;
+        }
+
+        // Runs before the client is registered anywhere, so nothing here may look it up
+        for (uMQTTJournal.Restored restored : mJournal.getRestored()) {
+            uMQTTPublish publish;
+            try {
+                publish = uMQTTPublish.restore(restored.packet, restored.released,
+                        mPacketIdAllocator);
+            }
+            catch (RuntimeException e) {
+                // A record we can't rebuild mustn't keep the client from being created
+                Timber.e(e, "Dropping unreadable journaled publish id #%d", restored.packetId);
+                try {
+                    mJournal.remove(restored.packetId);
+                }
+                catch (IOException ioe) {
+                    Timber.w(ioe, "Could not drop publish id #%d from the journal",
+                            restored.packetId);
+                }
+                continue;
+            }
+            mUnsentPublishes.put(publish.getPacketId(), publish);
+            ++mInFlightPublishes;
+        }
+        mPublishWindowFull = mInFlightPublishes >= mConfiguration.getMaxInFlight();
+        Timber.v("Restored %d unacknowledged publishes", mInFlightPublishes);
     }
 
     public static uMQTT getInstance() {
@@ -112,59 +180,164 @@ public class uMQTT {
         return mInstance;
     }
 
-    public static void init(@NonNull Context context,
-                            @NonNull uMQTTConfiguration configuration) {
+    /**
+     * @return The client created with the given id, or null if there is none.
+     */
+    public static uMQTT getInstance(String clientId) {
+        return clientId != null ? mClients.get(clientId) : null;
+    }
+
+    public static synchronized void init(@NonNull Context context,
+                                         @NonNull uMQTTConfiguration configuration) {
         if (mInstance != null) {
             throw new IllegalStateException(
                     "Cannot initialize controller twice!");
         }
-        mInstance = new uMQTT(context, configuration);
+        mInstance = create(context, configuration);
+    }
+
+    /**
+     * Creates a client independent from the default one and from any other created here.
+     * It starts connecting right away, like the default one.
+     * @throws IllegalStateException if there's a client with the same id already.
+     */
+    public static synchronized uMQTT create(@NonNull Context context,
+                                            @NonNull uMQTTConfiguration configuration) {
+        String clientId = configuration.getClientId();
+        if (clientId == null)
+            throw new IllegalArgumentException("Clients must have an id");
+        if (mClients.containsKey(clientId))
+            throw new IllegalStateException("There's a client with id " + clientId + " already");
+
+        uMQTT client = new uMQTT(context, configuration);
+        mClients.put(clientId, client);
+        return client;
+    }
+
+    /**
+     * Closes the connection and forgets this client, so its id can be used again. It can't
+     * be opened afterwards.
+     */
+    public void destroy() {
+        mDestroyed = true;
+        close();
+        if (mDispatcher != null) mDispatcher.shutdown();
+        uMQTTJournal journal = mJournal;
+        mJournal = null;
+        if (journal != null) journal.close();
+        synchronized (uMQTT.class) {
+            mClients.remove(mConfiguration.getClientId(), this);
+            if (mInstance == this) mInstance = null;
+        }
     }
 
     Context getApplicationContext() {
         return mApplicationContext;
     }
 
+    uMQTTOutputService getOutputService() {
+        return mOutputService;
+    }
+
+    /**
+     * @return Traffic, latency and connection figures for this client.
+     */
+    public uMQTTMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Has the interceptor told about every packet this client handles from now on. Without
+     * any, nothing is spent on it.
+     */
+    public void addInterceptor(uMQTTInterceptor interceptor) {
+        mInterceptors.add(interceptor);
+    }
+
+    public void removeInterceptor(uMQTTInterceptor interceptor) {
+        mInterceptors.remove(interceptor);
+    }
+
+    uMQTTInterceptors getInterceptors() {
+        return mInterceptors;
+    }
+
+    uMQTTKeepAlive getKeepAlive() {
+        return mKeepAlive;
+    }
+
+    boolean isReadingPaused() {
+        return mInputService.isReadingPaused();
+    }
+
+    /**
+     * Has a connection attempt made once the network is available. Only the connection's
+     * owner calls this, see {@link uMQTTConnection}.
+     */
     void scheduleSocketOpening() {
+        mJobManager.start();
+        mJobManager.addJobInBackground(new NetworkJobService(this));
+    }
+
+    /**
+     * Makes the connection attempt the connection's owner asked for. Does nothing if there's
+     * none waiting, e.g. the client was closed in the meantime.
+     */
+    public void openSocket() throws IOException {
+        uMQTTTransport transport = mConfiguration.getTransportFactory().create();
         try {
-            if (mSocket != null && !mSocket.isClosed()) mSocket.close();
+            transport.connect(mConfiguration.getBrokerIp(), mConfiguration.getBrokerPort());
+            if (!transport.isConnected()) throw new IOException("Could not connect to broker");
         }
         catch (IOException e) {
-            Timber.e(e, "Could not close socket!");
+            closeQuietly(transport);
+            mConnection.onConnectFailed(e);
+            throw e;
         }
 
-        mJobManager.start();
-        mJobManager.addJobInBackground(new NetworkJobService());
+        if (!mConnection.onSocketOpened(transport)) closeQuietly(transport);
     }
 
-    public void openSocket() throws IOException {
+    /**
+     * Starts reading and writing over a freshly opened transport. Only the connection's owner
+     * calls this, under its lock, so a concurrent close can't leave it running.
+     */
+    void startConnection(uMQTTTransport transport) {
         mConnectedToBroker = false;
-        mSocket = new Socket(mConfiguration.getBrokerIp(), mConfiguration.getBrokerPort());
-        if (mSocket.isConnected())
-            startInputListener(mSocket.getInputStream());
-        else throw new IOException("Could not connect to broker");
+        mTransport = transport;
+        // The writer must be up before the listener asks for CONNECT to be sent
+        mOutputService.start(transport);
+        startInputListener(transport);
+    }
+
+    private static void closeQuietly(uMQTTTransport transport) {
+        try {
+            transport.close();
+        }
+        catch (IOException e) {
+            Timber.e(e, "Could not close socket!");
+        }
+    }
+
+    uMQTTConfiguration getConfiguration() {
+        return mConfiguration;
     }
 
-    Socket getSocket() {
-        return mSocket;
+    uMQTTTransport getTransport() {
+        return mTransport;
     }
 
     void establishConnection() {
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        i.setAction(ACTION_CONNECT);
-        i.putExtra(EXTRA_CLIENT_ID, mConfiguration.getClientId());
-        if (mConfiguration.getUsername() != null) {
-            i.putExtra(EXTRA_USERNAME, mConfiguration.getUsername());
-        }
-        if (mConfiguration.getPassword() != null) {
-            i.putExtra(EXTRA_PASSWORD, mConfiguration.getPassword());
-        }
-        mApplicationContext.startService(i);
+        mOutputService.connect(mConfiguration.getClientId(),
+                mConfiguration.getUsername(),
+                mConfiguration.getPassword());
     }
 
     void connectionEstablished() {
+        if (!mConnection.onConnected()) return;
         mConnectedToBroker = true;
-        startKeepAliveMechanism();
+        mMetrics.connected();
+        mKeepAlive.start();
 
         if (mSubscriptionFrames != null) {
             String[] topics = new String[mSubscriptionFrames.size()];
@@ -175,49 +348,76 @@ public class uMQTT {
                 qosLevels[j] = mSubscriptionFrames.get(j).getRequestedQoSLevel();
             }
 
-            Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-            i.setAction(ACTION_SUBSCRIBE);
-            i.putExtra(EXTRA_TOPICS, topics);
-            i.putExtra(EXTRA_TOPICS_QOS, qosLevels);
-            mApplicationContext.startService(i);
+            mOutputService.subscribe(topics, qosLevels, false);
         }
 
-        if (mUnsentPublishes != null) {
-            Collection<uMQTTPublish> publishes = mUnsentPublishes.values();
-            for (uMQTTPublish publish : publishes) {
-                sendPublish(publish);
+        for (uMQTTPublish publish : mUnsentPublishes.values()) {
+            // The broker already has these, it's waiting for the release
+            if (publish.getState() == uMQTTPublish.PUB_RECEIVED) {
+                mOutputService.handlePublishTransaction(
+                        uMQTTFrame.MQ_PUBREL, publish.getPacketId());
             }
+            else sendPublish(publish);
         }
 
         if (mConfiguration.hasConnectionCallback())
             mConfiguration.connectionEstablished();
     }
 
-    private void startInputListener(InputStream inputStream) {
-        uMQTTInputService.getInstance().start(inputStream);
+    private void startInputListener(uMQTTTransport transport) {
+        mInputService.start(transport);
     }
 
     public void stopInputListener() {
-        uMQTTInputService.getInstance().stop();
+        mInputService.stop();
     }
 
     public void sendDisconnectAndCloseSocket() {
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        i.setAction(ACTION_DISCONNECT);
-        mApplicationContext.startService(i);
+        mOutputService.disconnect();
     }
 
     public synchronized void addSubscription(String topic, byte qosLevel,
                                 uMQTTSubscription.OnReceivedPublish onReceivedPublish) {
+        addSubscription(new uMQTTSubscription(topic, qosLevel, onReceivedPublish));
+    }
+
+    public synchronized void addSubscription(String topic, byte qosLevel,
+                                uMQTTSubscription.OnReceivedMessage onReceivedMessage) {
+        addSubscription(new uMQTTSubscription(topic, qosLevel, onReceivedMessage));
+    }
+
+    /**
+     * Subscribes to a topic whose payloads are not text. Received payloads are handed over
+     * as they came, with no charset conversion.
+     */
+    public synchronized void addBinarySubscription(String topic, byte qosLevel,
+                                uMQTTSubscription.OnReceivedBinaryPublish onReceivedPublish) {
+        addSubscription(new uMQTTSubscription(topic, qosLevel, onReceivedPublish));
+    }
+
+    /**
+     * Subscribes to a topic, handing received messages over as they are asked for. Each
+     * subscriber to the publisher gets its own buffer of about bufferSize messages; while any
+     * of them is full, nothing more is read from the broker. Subscribers that keep up should
+     * thus be favored, since a stalled one holds back every topic of this client.
+     * @param bufferSize messages kept for each subscriber until it requests them. A few more
+     *                   may be kept, the ones read along with the one that filled it.
+     */
+    public synchronized uMQTTFlow.Publisher<uMQTTMessage> addSubscription(
+            String topic, byte qosLevel, int bufferSize) {
+        uMQTTSubscriptionPublisher publisher = new uMQTTSubscriptionPublisher(
+                mInputService, bufferSize);
+        addSubscription(new uMQTTSubscription(topic, qosLevel, publisher));
+        return publisher;
+    }
+
+    private void addSubscription(uMQTTSubscription subscription) {
+        mSubscriptionTree.put(subscription.getTopic(), subscription);
         if (mSubscriptions == null) mSubscriptions = new HashMap<>();
-        uMQTTSubscription subscription = new uMQTTSubscription(topic, qosLevel, onReceivedPublish);
-        mSubscriptions.put(topic, subscription);
+        mSubscriptions.put(subscription.getTopic(), subscription);
         if (mConnectedToBroker) {
-            Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-            i.setAction(ACTION_SUBSCRIBE);
-            i.putExtra(EXTRA_TOPIC, topic);
-            i.putExtra(EXTRA_TOPIC_QOS, qosLevel);
-            mApplicationContext.startService(i);
+            mOutputService.subscribe(subscription.getTopic(),
+                    subscription.getRequestedQoSLevel(), false);
         }
         else {
             if (mSubscriptionFrames == null) mSubscriptionFrames = new ArrayList<>();
@@ -227,21 +427,52 @@ public class uMQTT {
 
     public synchronized void addSubscriptions(String[] topics, byte[] qosLevels,
                                  uMQTTSubscription.OnReceivedPublish onReceivedPublish) {
-        if (mSubscriptions == null) mSubscriptions = new HashMap<>();
         if (topics.length != qosLevels.length)
             throw new UnsupportedOperationException("Number of topics and QoSLevels differ");
 
         uMQTTSubscription[] subscriptions = new uMQTTSubscription[topics.length];
         for (int i = 0; i < topics.length; ++i) {
             subscriptions[i] = new uMQTTSubscription(topics[i], qosLevels[i], onReceivedPublish);
-            mSubscriptions.put(topics[i], subscriptions[i]);
         }
+        addSubscriptions(topics, qosLevels, subscriptions);
+    }
+
+    public synchronized void addSubscriptions(String[] topics, byte[] qosLevels,
+                                 uMQTTSubscription.OnReceivedMessage onReceivedMessage) {
+        if (topics.length != qosLevels.length)
+            throw new UnsupportedOperationException("Number of topics and QoSLevels differ");
+
+        uMQTTSubscription[] subscriptions = new uMQTTSubscription[topics.length];
+        for (int i = 0; i < topics.length; ++i) {
+            subscriptions[i] = new uMQTTSubscription(topics[i], qosLevels[i], onReceivedMessage);
+        }
+        addSubscriptions(topics, qosLevels, subscriptions);
+    }
+
+    public synchronized void addBinarySubscriptions(String[] topics, byte[] qosLevels,
+                                 uMQTTSubscription.OnReceivedBinaryPublish onReceivedPublish) {
+        if (topics.length != qosLevels.length)
+            throw new UnsupportedOperationException("Number of topics and QoSLevels differ");
+
+        uMQTTSubscription[] subscriptions = new uMQTTSubscription[topics.length];
+        for (int i = 0; i < topics.length; ++i) {
+            subscriptions[i] = new uMQTTSubscription(topics[i], qosLevels[i], onReceivedPublish);
+        }
+        addSubscriptions(topics, qosLevels, subscriptions);
+    }
+
+    private void addSubscriptions(String[] topics, byte[] qosLevels,
+                                  uMQTTSubscription[] subscriptions) {
+        for (String topic : topics) uMQTTTopicTree.validateFilter(topic);
+
+        if (mSubscriptions == null) mSubscriptions = new HashMap<>();
+        for (uMQTTSubscription subscription : subscriptions) {
+            mSubscriptions.put(subscription.getTopic(), subscription);
+            mSubscriptionTree.put(subscription.getTopic(), subscription);
+        }
+
         if (mConnectedToBroker) {
-            Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-            i.setAction(ACTION_SUBSCRIBE);
-            i.putExtra(EXTRA_TOPICS, topics);
-            i.putExtra(EXTRA_TOPICS_QOS, qosLevels);
-            mApplicationContext.startService(i);
+            mOutputService.subscribe(topics, qosLevels, false);
         }
         else {
             if (mSubscriptionFrames == null) mSubscriptionFrames = new ArrayList<>();
@@ -265,12 +496,16 @@ public class uMQTT {
     }
 
     synchronized void setResponseToAwaitingSubscriptions(short packetId, byte[] grantedQoSLevels) {
+        mPacketIdAllocator.release(packetId);
         int i = 0;
 
         for (Iterator<uMQTTSubscription> it = mSubscriptionsAwaitingResponse.iterator();
              it.hasNext();) {
             uMQTTSubscription subscription = it.next();
             if (subscription.getRequestPacketId() == packetId && i < grantedQoSLevels.length) {
+                if (i == 0)
+                    mMetrics.subscribeAcknowledged(
+                            System.nanoTime() - subscription.getRequestedAt());
                 subscription.setGrantedQosLevel(grantedQoSLevels[i++]);
                 Timber.v("Confirmed subscription to topic %s with QoS %d",
                         subscription.getTopic(), subscription.getGrantedQoSLevel());
@@ -280,126 +515,224 @@ public class uMQTT {
         }
     }
 
-    private void startKeepAliveMechanism() {
-        Job pingJob = mJobDispatcher.newJobBuilder()
-                .setService(PingService.class)
-                .setTag(JS_PING_JOB)
-                .addConstraint(Constraint.ON_ANY_NETWORK)
-                .setRetryStrategy(RetryStrategy.DEFAULT_EXPONENTIAL)
-                .setLifetime(Lifetime.FOREVER)
-                .setRecurring(true)
-                .setReplaceCurrent(true)
-                .setTrigger(Trigger.executionWindow(
-                        DEFAULT_KEEP_ALIVE - DEFAULT_KEEP_ALIVE/10,
-                        DEFAULT_KEEP_ALIVE - DEFAULT_KEEP_ALIVE/20))
-                .build();
-
-        mJobDispatcher.mustSchedule(pingJob);
-    }
-
     public void sendPing() {
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        i.setAction(ACTION_PING);
-        mApplicationContext.startService(i);
+        mOutputService.pingreq();
     }
 
     void addPublish(uMQTTPublish publish) {
-        if (publish.getQosLevel() == 0 && !mConnectedToBroker)
+        if (publish.getQosLevel() == 0) {
+            if (!mConnectedToBroker) {
+                mPacketIdAllocator.release(publish.getPacketId());
+                return;
+            }
+            startPublish(publish);
             return;
+        }
 
-        if (mUnsentPublishes == null) {
-            mUnsentPublishes = new HashMap<>();
+        // Queued first, so publishes go out in order even when the window is full
+        mPublishLock.lock();
+        try {
+            mPendingPublishes.add(publish);
+            releasePendingPublishes();
+        }
+        finally {
+            mPublishLock.unlock();
         }
+    }
+
+    private void startPublish(uMQTTPublish publish) {
         mUnsentPublishes.put(publish.getPacketId(), publish);
+        if (mJournal != null && publish.getQosLevel() != 0) {
+            try {
+                mJournal.append(publish.getPacketId(), publish.getPacket());
+            }
+            catch (IOException e) {
+                Timber.e(e, "Could not journal publish id #%d", publish.getPacketId());
+            }
+        }
         if (mConnectedToBroker) {
             sendPublish(publish);
         }
+        advance(publish);
+    }
+
+    private void advance(uMQTTPublish publish) {
+        int state = publish.getState();
         publish.transactionAdvance();
+        if (mInterceptors.isActive() && publish.getState() != state)
+            mInterceptors.onPublishStateChanged(publish.getPacketId(), publish.getState(),
+                    publish.getFrame().getEncodedSize());
+    }
+
+    /**
+     * Starts as many pending publishes as the in-flight window allows. Must be called
+     * holding mPublishLock.
+     */
+    private void releasePendingPublishes() {
+        int maxInFlight = mConfiguration.getMaxInFlight();
+        while (mInFlightPublishes < maxInFlight && !mPendingPublishes.isEmpty()) {
+            ++mInFlightPublishes;
+            startPublish(mPendingPublishes.poll());
+        }
+
+        boolean full = mInFlightPublishes >= maxInFlight;
+        if (full == mPublishWindowFull) return;
+        mPublishWindowFull = full;
+        if (mOnPublishWindowListener == null) return;
+        if (full) mOnPublishWindowListener.onPublishWindowFull();
+        else mOnPublishWindowListener.onPublishWindowAvailable();
+    }
+
+    private void completeInFlightPublish() {
+        mPublishLock.lock();
+        try {
+            --mInFlightPublishes;
+            releasePendingPublishes();
+        }
+        finally {
+            mPublishLock.unlock();
+        }
+    }
+
+    /**
+     * Notified when the in-flight window for QoS 1/2 publishes fills up, and when it has
+     * room again. Publishes made while it is full are not lost, they wait in order for a
+     * PUBACK or PUBCOMP to free a slot.
+     */
+    public interface OnPublishWindowListener {
+        void onPublishWindowFull();
+        void onPublishWindowAvailable();
+    }
+
+    public void setOnPublishWindowListener(OnPublishWindowListener onPublishWindowListener) {
+        mOnPublishWindowListener = onPublishWindowListener;
+    }
+
+    /**
+     * @return Whether a QoS 1/2 publish made now would have to wait for the window.
+     */
+    public boolean isPublishWindowFull() {
+        return mPublishWindowFull;
+    }
+
+    public int getInFlightPublishCount() {
+        return mInFlightPublishes;
+    }
+
+    int getAwaitingReleaseCount() {
+        return mAwaitingRelease != null ? mAwaitingRelease.size() : 0;
+    }
+
+    public int getPendingPublishCount() {
+        mPublishLock.lock();
+        try {
+            return mPendingPublishes.size();
+        }
+        finally {
+            mPublishLock.unlock();
+        }
     }
 
     void sendPublish(uMQTTPublish publish) {
-        Timber.v("Sending PUBLISH packet to %s: %s (packet id: %d)",
+        Timber.v("Sending PUBLISH packet to %s: %d bytes (packet id: %d)",
                 publish.getTopic(),
-                publish.isMessageTooLong() ? "--Constricted long message--" : publish.getMessage(),
+                publish.getPayloadLength(),
                 publish.getPacketId());
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        i.setAction(ACTION_PUBLISH);
-        i.putExtra(EXTRA_PACKET_ID, publish.getPacketId());
-        mApplicationContext.startService(i);
+        publish.setSentAt(System.nanoTime());
+        mOutputService.publish(publish);
     }
 
     void sentQoS0Packet(short packetId) {
-        if (mUnsentPublishes != null)
-            mUnsentPublishes.remove(packetId);
+        mUnsentPublishes.remove(packetId);
+        mPacketIdAllocator.release(packetId);
     }
 
     uMQTTPublish getPublish(short packetId) {
-        if (mUnsentPublishes.get(packetId) != null){
-            return mUnsentPublishes.get(packetId);
-        }else{
-            return null;
-        }
+        return mUnsentPublishes.get(packetId);
     }
 
     void advanceOutboundTransaction(short packetId) {
         Timber.v("Acknowledged publish id #%d", packetId);
         uMQTTPublish publish = mUnsentPublishes.get(packetId);
         if (publish == null) return;
-        publish.transactionAdvance();
+        advance(publish);
         if (publish.getState() == uMQTTPublish.PUB_RECEIVED) {
-            Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-            i.setAction(ACTION_FORWARD_PUBLISH);
-            i.putExtra(EXTRA_PACKET_ID, packetId);
-            i.putExtra(EXTRA_FRAME_TYPE, uMQTTFrame.MQ_PUBREL);
-            mApplicationContext.startService(i);
+            if (mJournal != null) {
+                try {
+                    mJournal.markReleased(packetId);
+                }
+                catch (IOException e) {
+                    Timber.e(e, "Could not journal release of publish id #%d", packetId);
+                }
+            }
+            mOutputService.handlePublishTransaction(
+                    uMQTTFrame.MQ_PUBREL, packetId);
+        }
+        else if (mUnsentPublishes.remove(packetId) != null) {
+            if (publish.getSentAt() != 0)
+                mMetrics.publishCompleted(publish.getQosLevel(),
+                        System.nanoTime() - publish.getSentAt());
+            if (mJournal != null) {
+                try {
+                    mJournal.remove(packetId);
+                }
+                catch (IOException e) {
+                    Timber.e(e, "Could not journal acknowledgement of publish id #%d",
+                            packetId);
+                }
+            }
+            mPacketIdAllocator.release(packetId);
+            completeInFlightPublish();
+        }
+    }
+
+    void advanceInboundTransaction(uMQTTMessage message) {
+        short packetId = message.getPacketId();
+        switch (message.getQosLevel()) {
+            case 0b00:
+                deliver(message);
+                break;
+            case 0b01:
+                deliver(message);
+                Timber.v("Sending PUBACK for packet id %d", packetId);
+                mOutputService.handlePublishTransaction(
+                        uMQTTFrame.MQ_PUBACK, packetId);
+                break;
+            case 0b10:
+                // Delivered when first received. Until PUBREL only the id is kept, so a
+                // resend of the same publish isn't delivered twice
+                if (mAwaitingRelease.add(packetId)) deliver(message);
+                else Timber.v("Publish id %d was already delivered", packetId);
+                Timber.v("Sending PUBREC for packet id %d", packetId);
+                mOutputService.handlePublishTransaction(
+                        uMQTTFrame.MQ_PUBREC, packetId);
+                break;
         }
-        else mUnsentPublishes.remove(packetId);
     }
 
-    void advanceInboundTransaction(uMQTTPublish publish) {
-        publish.transactionAdvance();
-        if (publish.getQosLevel() == 0) return;
-
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        if (mUnhandledPublishes == null) mUnhandledPublishes = new HashMap<>();
-        try {
-            mUnhandledPublishes.put(publish.getPacketId(), publish);
-        }
-        catch (NullPointerException e) {
-            Timber.v("Dropping...");
-            return;
-        }
-        i.setAction(ACTION_FORWARD_PUBLISH);
-        i.putExtra(EXTRA_PACKET_ID, publish.getPacketId());
-        if (publish.getQosLevel() == 0b01) {
-            i.putExtra(EXTRA_FRAME_TYPE, uMQTTFrame.MQ_PUBACK);
-            Timber.v("Sending PUBACK for packet id %d", publish.getPacketId());
-        }
-        else if (publish.getQosLevel() == 0b10) {
-            i.putExtra(EXTRA_FRAME_TYPE, uMQTTFrame.MQ_PUBREC);
-            Timber.v("Sending PUBREC for packet id %d", publish.getPacketId());
-        }
-        else return;
+    void advanceInboundTransaction(short packetId) {
+        mAwaitingRelease.remove(packetId);
+        // PUBREL must always be completed, even for publishes we dropped
+        Timber.v("Sending PUBCOMP for packet id %d", packetId);
+        mOutputService.handlePublishTransaction(
+                uMQTTFrame.MQ_PUBCOMP, packetId);
+    }
 
-        mApplicationContext.startService(i);
+    boolean hasSubscription(String topic) {
+        return mSubscriptionTree.hasMatch(topic);
     }
 
-    void advanceInboundTransaction(short packetId) {
-        uMQTTPublish publish = mUnhandledPublishes.get(packetId);
-        if(publish != null) {
-            publish.transactionAdvance();
-            Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-            i.setAction(ACTION_FORWARD_PUBLISH);
-            i.putExtra(EXTRA_PACKET_ID, packetId);
-            if (publish.getState() == uMQTTPublish.PUB_COMPLETED) {
-                i.putExtra(EXTRA_FRAME_TYPE, uMQTTFrame.MQ_PUBCOMP);
-            } else return;
+    /**
+     * Acknowledges an inbound publish nobody is subscribed to, without dispatching it.
+     * QoS 2 publishes get a PUBREC, the PUBREL that follows is completed as usual.
+     */
+    void dropInboundPublish(uMQTTMessage message) {
+        Timber.v("No subscription found for topic %s, dropping", message.getTopic());
+        if (message.getQosLevel() == 0) return;
 
-            Timber.v("Sending PUBCOMP for packet id %d", packetId);
-            mApplicationContext.startService(i);
-        }else{
-            Timber.v("Publish is null");
-        }
+        mOutputService.handlePublishTransaction(
+                message.getQosLevel() == 0b01 ? uMQTTFrame.MQ_PUBACK : uMQTTFrame.MQ_PUBREC,
+                message.getPacketId());
     }
 
     public interface OnUnsubscribeListener {
@@ -424,17 +757,11 @@ public class uMQTT {
             return;
         }
 
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        i.setAction(ACTION_UNSUBSCRIBE);
-        i.putExtra(EXTRA_TOPIC, topic);
-        mApplicationContext.startService(i);
+        mOutputService.unsubscribe(new String[]{topic});
     }
 
     private void forceUnsubscribeFromTopic(String topic) {
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        i.setAction(ACTION_UNSUBSCRIBE);
-        i.putExtra(EXTRA_TOPIC, topic);
-        mApplicationContext.startService(i);
+        mOutputService.unsubscribe(new String[]{topic});
     }
 
     public void unsubscribeFromTopics(String[] topics) {
@@ -454,88 +781,124 @@ public class uMQTT {
         }
 
         if (send) {
-            Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-            i.setAction(ACTION_UNSUBSCRIBE);
-            i.putExtra(EXTRA_TOPICS, topics);
-            mApplicationContext.startService(i);
+            mOutputService.unsubscribe(topics);
         }
     }
 
     void addToUnhandledUnsubscriptions(short packetId, String[] topics) {
-        if (mUnhandledUnsubscriptions == null) mUnhandledUnsubscriptions = new HashMap<>();
         mUnhandledUnsubscriptions.put(packetId, topics);
     }
 
     void removeSubscriptions(short packetId) {
-        if(mUnhandledUnsubscriptions != null) {
-            String[] topics = mUnhandledUnsubscriptions.get(packetId);
-
-            if (topics != null) {
-                for (String topic : topics) mSubscriptions.remove(topic);
-                mOnUnsubscribeListener.onUnsubscribeSuccessful(topics);
+        mPacketIdAllocator.release(packetId);
+        String[] topics = mUnhandledUnsubscriptions.remove(packetId);
+
+        if (topics != null) {
+            uMQTTSubscription[] removed = new uMQTTSubscription[topics.length];
+            // Same lock as adding subscriptions, callbacks are run after letting it go
+            synchronized (this) {
+                for (int i = 0; i < topics.length; ++i) {
+                    removed[i] = mSubscriptions.remove(topics[i]);
+                    mSubscriptionTree.remove(topics[i]);
+                }
             }
-
-            mUnhandledUnsubscriptions.remove(packetId);
+            for (uMQTTSubscription subscription : removed) {
+                if (subscription != null) subscription.close();
+            }
+            if (mOnUnsubscribeListener != null)
+                mOnUnsubscribeListener.onUnsubscribeSuccessful(topics);
         }
     }
 
-    void publishCallback(String topic, String message) {
-        try {
-            mSubscriptions.get(topic).dispatchMessage(message);
-        }
-        catch (NullPointerException e) {
-            Timber.w(e, "No subscription found tor topic %s", topic);
-        }
+    private void deliver(uMQTTMessage message) {
+        if (mDispatcher != null) mDispatcher.dispatch(message);
+        else publishCallback(message);
     }
 
-    public void open() {
-        if (mSocket != null && !mSocket.isClosed()
-                && mSocket.isConnected() && mConnectedToBroker) {
-            Timber.w("uMQTT service already open");
+    /**
+     * @return How many received messages wait for their callbacks on each dispatch thread,
+     * empty if callbacks run on the reading thread.
+     * @see uMQTTConfiguration.Builder#setDispatchThreads(int)
+     */
+    public int[] getDispatchQueueDepths() {
+        return mDispatcher != null ? mDispatcher.getQueueDepths() : new int[0];
+    }
+
+    void publishCallback(uMQTTMessage message) {
+        if (mInterceptors.isActive())
+            mInterceptors.onPacket(uMQTTInterceptor.EVENT_DISPATCHED, uMQTTFrame.MQ_PUBLISH,
+                    message.getPacketId(), message.getSize());
+        // Several filters may match the same topic, each one gets its copy
+        List<uMQTTSubscription> subscriptions = new ArrayList<>(1);
+        mSubscriptionTree.match(message.getTopic(), subscriptions);
+        if (subscriptions.isEmpty()) {
+            Timber.w("No subscription found tor topic %s", message.getTopic());
             return;
         }
+        for (int i = 0; i < subscriptions.size(); ++i)
+            subscriptions.get(i).dispatchMessage(message);
+    }
 
-        scheduleSocketOpening();
+    /**
+     * Connects to the broker, and keeps reconnecting whenever the connection is lost until
+     * {@link #close()}. Does nothing if that's already going on.
+     */
+    public void open() {
+        if (mDestroyed) throw new IllegalStateException("Client was destroyed");
+        mConnection.connect();
     }
 
     public void close() {
         Timber.i("Closing MQTT connection.");
-        mJobDispatcher.cancelAll();
+        mJobDispatcher.cancel(storageName(JS_PING_JOB));
+        mConnection.disconnect();
+    }
+
+    /**
+     * Something went wrong with the connection over the transport: the connection's owner
+     * drops it and reconnects, unless it was dropped already.
+     */
+    void connectionLost(uMQTTTransport transport, IOException cause) {
+        mConnection.connectionLost(transport, cause);
+    }
+
+    /**
+     * Stops everything working over the current transport. Only the connection's owner calls
+     * this, see {@link uMQTTConnection}.
+     * @param graceful whether to tell the broker with DISCONNECT, if it accepted the connection.
+     */
+    void tearDown(boolean graceful) {
+        mKeepAlive.stop();
         mJobManager.stop();
         stopInputListener();
-        if (mSocket != null && !mSocket.isClosed()) {
+        uMQTTTransport transport = mTransport;
+        if (graceful && mConnectedToBroker && transport != null && transport.isConnected()) {
             sendDisconnectAndCloseSocket();
         }
+        else {
+            mOutputService.stop();
+            if (transport != null) closeQuietly(transport);
+        }
         mConnectedToBroker = false;
+        mMetrics.disconnected();
     }
 
     public boolean isConnected() {
         return mConnectedToBroker;
     }
 
-    short getTopPacketId() {
-        SharedPreferences sp = mApplicationContext.getSharedPreferences(PREFS_FILE,
-                Context.MODE_PRIVATE);
-        return (short)(sp.getInt(PREF_PACKET_ID, 1) & 0xffff);
-    }
-
-    void updateTopPacketId(short packetId) {
-        SharedPreferences sp = mApplicationContext.getSharedPreferences(PREFS_FILE,
-                Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sp.edit();
-        editor.putInt(PREF_PACKET_ID, packetId & 0xffff);
-        editor.commit();
+    uMQTTPacketIdAllocator getPacketIdAllocator() {
+        return mPacketIdAllocator;
     }
 
     void sendPuback(short packetId) {
-        Intent i = new Intent(mApplicationContext, uMQTTOutputService.class);
-        i.setAction(ACTION_FORWARD_PUBLISH);
-        i.putExtra(EXTRA_PACKET_ID, packetId);
-        i.putExtra(EXTRA_FRAME_TYPE, uMQTTFrame.MQ_PUBACK);
-        mApplicationContext.startService(i);
+        mOutputService.handlePublishTransaction(
+                uMQTTFrame.MQ_PUBACK, packetId);
     }
 
     void sentPacket(short packetId) {
-        mUnsentPublishes.get(packetId).setDuplicate();
+        // The acknowledgement might have arrived already
+        uMQTTPublish publish = mUnsentPublishes.get(packetId);
+        if (publish != null) publish.setDuplicate();
     }
 }
@@ -0,0 +1,66 @@
+package re.usto.umqtt;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte buffers grouped in power of two size classes. Frames bigger than what the
+ * input service keeps around take a buffer from here and give it back once dispatched,
+ * so we only hold memory for big frames while they are being received.
+ *
+ * @author gabriel
+ */
+
+class uMQTTBufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 8;   // 256B
+    private static final int MAX_RETAINED_SHIFT = 14;   // 16KB
+    private static final int MAX_RETAINED_PER_CLASS = 2;
+
+    private final int mMaxBufferSize;
+    private final ArrayDeque<byte[]>[] mFreeBuffers;
+
+    @SuppressWarnings("unchecked")
+    uMQTTBufferPool(int maxBufferSize) {
+        mMaxBufferSize = maxBufferSize;
+        mFreeBuffers = (ArrayDeque<byte[]>[])
+                new ArrayDeque<?>[MAX_RETAINED_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < mFreeBuffers.length; ++i) {
+            mFreeBuffers[i] = new ArrayDeque<>(MAX_RETAINED_PER_CLASS);
+        }
+    }
+
+    private static int classShift(int size) {
+        if (size <= 1 << MIN_CLASS_SHIFT) return MIN_CLASS_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * @param size minimum size of the buffer.
+     * @return A buffer with at least <code>size</code> bytes. It may be bigger.
+     */
+    synchronized byte[] acquire(int size) {
+        if (size > mMaxBufferSize)
+            throw new IllegalArgumentException("Requested buffer exceeds maximum frame size");
+
+        int shift = classShift(size);
+        if (shift <= MAX_RETAINED_SHIFT) {
+            byte[] buffer = mFreeBuffers[shift - MIN_CLASS_SHIFT].poll();
+            if (buffer != null) return buffer;
+        }
+
+        // Never go past the maximum, there's no point in rounding up the biggest class
+        return new byte[Math.min(1 << shift, mMaxBufferSize)];
+    }
+
+    /**
+     * Gives back a buffer taken through {@link #acquire(int)}. Big buffers are left to the GC,
+     * so an idle client only keeps a few KB around.
+     */
+    synchronized void release(byte[] buffer) {
+        int shift = classShift(buffer.length);
+        if (buffer.length != 1 << shift || shift > MAX_RETAINED_SHIFT) return;
+
+        ArrayDeque<byte[]> free = mFreeBuffers[shift - MIN_CLASS_SHIFT];
+        if (free.size() < MAX_RETAINED_PER_CLASS) free.push(buffer);
+    }
+}
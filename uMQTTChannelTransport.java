@@ -0,0 +1,117 @@
+package re.usto.umqtt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport over a non-blocking {@link SocketChannel}. Writes go out from direct buffers, so
+ * the output service encodes frames straight into memory the kernel can copy from.
+ *
+ * <p> Reading and writing each wait on their own selector when the channel isn't ready, so
+ * the reader and the writer never get in each other's way.
+ *
+ * @author gabriel
+ */
+
+public class uMQTTChannelTransport implements uMQTTTransport {
+
+    private static final Factory FACTORY = new Factory() {
+        @Override
+        public uMQTTTransport create() {
+            return new uMQTTChannelTransport();
+        }
+    };
+
+    private SocketChannel mChannel;
+    private Selector mReadSelector;
+    private Selector mWriteSelector;
+
+    public static Factory factory() {
+        return FACTORY;
+    }
+
+    @Override
+    public void connect(String host, int port) throws IOException {
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.socket().setTcpNoDelay(true);
+        mReadSelector = Selector.open();
+        mWriteSelector = Selector.open();
+
+        if (!mChannel.connect(new InetSocketAddress(host, port))) {
+            SelectionKey key = mChannel.register(mWriteSelector, SelectionKey.OP_CONNECT);
+            while (!mChannel.finishConnect()) {
+                mWriteSelector.select();
+                mWriteSelector.selectedKeys().clear();
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        else mChannel.register(mWriteSelector, SelectionKey.OP_WRITE);
+        mChannel.register(mReadSelector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return readChannel(dst);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        writeChannel(src);
+    }
+
+    /**
+     * Reads what the channel has, waiting for it to be readable if it has nothing yet.
+     */
+    protected int readChannel(ByteBuffer dst) throws IOException {
+        while (true) {
+            int read = mChannel.read(dst);
+            if (read != 0 || !dst.hasRemaining()) return read;
+            await(mReadSelector);
+        }
+    }
+
+    protected void writeChannel(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (mChannel.write(src) == 0) await(mWriteSelector);
+        }
+    }
+
+    private void await(Selector selector) throws IOException {
+        try {
+            selector.select();
+            selector.selectedKeys().clear();
+        }
+        catch (ClosedSelectorException e) {
+            throw new EOFException("Transport closed");
+        }
+        if (!mChannel.isOpen()) throw new EOFException("Transport closed");
+    }
+
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mChannel != null && mChannel.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel == null) return;
+        mChannel.close();
+        // Wakes up whoever is waiting, they'll find the channel closed
+        mReadSelector.wakeup();
+        mWriteSelector.wakeup();
+        mReadSelector.close();
+        mWriteSelector.close();
+    }
+}
@@ -1,5 +1,10 @@
 package re.usto.umqtt;
 
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
 /**
  * Created by gabriel on 6/5/17.
  */
@@ -11,6 +16,41 @@ public class uMQTTConfiguration {
     private String username;
     private String password;
     private int brokerPort;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private boolean persistPublishes = false;
+    private boolean persistInboundState = false;
+    private uMQTTTransport.Factory transportFactory = uMQTTSocketTransport.factory();
+    private @ExecutionMode int executionMode = EXECUTION_PLATFORM_THREADS;
+    private int dispatchThreads = 0;
+    private int keepAlive = DEFAULT_KEEP_ALIVE;
+    private int pingTimeout = DEFAULT_PING_TIMEOUT;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({EXECUTION_PLATFORM_THREADS, EXECUTION_VIRTUAL_THREADS})
+    public @interface ExecutionMode { }
+
+    /**
+     * Reading, writing and subscription callbacks each run on a platform thread.
+     */
+    public static final int EXECUTION_PLATFORM_THREADS = 0;
+
+    /**
+     * Same threads as {@link #EXECUTION_PLATFORM_THREADS}, but virtual ones, so hosting many
+     * clients doesn't cost a platform thread per connection. Only on JVMs with virtual
+     * threads (Java 21 onwards), not on Android.
+     */
+    public static final int EXECUTION_VIRTUAL_THREADS = 1;
+
+    // Size = 4MB
+    static final int DEFAULT_MAX_FRAME_SIZE = 4 * 1024 * 1024;
+    // No limit besides the packet ids available
+    static final int DEFAULT_MAX_IN_FLIGHT = 0xffff;
+    // Seconds
+    static final int DEFAULT_KEEP_ALIVE = 180;
+    static final int DEFAULT_PING_TIMEOUT = 10;
+    // Biggest size the "remaining length" field can announce, plus fixed header
+    private static final int MQTT_MAX_FRAME_SIZE = 268435455 + 5;
 
     // Callback is called when we receive a connack from the broker
     public interface OnConnectionEstablishedListener {
@@ -50,6 +90,112 @@ public class uMQTTConfiguration {
             return this;
         }
 
+        /**
+         * Frames bigger than this are dropped when received (publishes are acknowledged
+         * before being dropped, so the broker won't resend them). Defaults to 4MB.
+         * @param maxFrameSize size in bytes, fixed header included.
+         */
+        public Builder setMaxFrameSize(int maxFrameSize) {
+            if (maxFrameSize < 1024 || maxFrameSize > MQTT_MAX_FRAME_SIZE)
+                throw new IllegalArgumentException("Invalid maximum frame size");
+            config.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        /**
+         * Maximum amount of QoS 1/2 publishes sent and not yet acknowledged. Further publishes
+         * wait in order until a PUBACK or PUBCOMP frees a slot. No limit by default.
+         * @param maxInFlight window size, at least 1.
+         */
+        public Builder setMaxInFlight(int maxInFlight) {
+            if (maxInFlight < 1)
+                throw new IllegalArgumentException("In-flight window must allow a publish");
+            config.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Keeps QoS 1/2 publishes in a journal on disk until acknowledged, so the ones still
+         * unacknowledged are sent again if the process is killed and restarted. Off by default.
+         */
+        public Builder setPersistPublishes(boolean persistPublishes) {
+            config.persistPublishes = persistPublishes;
+            return this;
+        }
+
+        /**
+         * Keeps the ids of received QoS 2 publishes awaiting PUBREL on disk, so a publish
+         * the broker resends after a restart isn't delivered twice. Off by default.
+         */
+        public Builder setPersistInboundState(boolean persistInboundState) {
+            config.persistInboundState = persistInboundState;
+            return this;
+        }
+
+        /**
+         * How we reach the broker. Defaults to a blocking socket, see
+         * {@link uMQTTChannelTransport} and {@link uMQTTTlsTransport} for the others.
+         */
+        public Builder setTransport(uMQTTTransport.Factory transportFactory) {
+            if (transportFactory == null)
+                throw new IllegalArgumentException("Transport factory can't be null");
+            config.transportFactory = transportFactory;
+            return this;
+        }
+
+        /**
+         * Which threads read from the broker, write to it and run subscription callbacks
+         * (these run on the reading thread). Platform threads by default.
+         * @throws UnsupportedOperationException if virtual threads are asked for and the
+         * runtime has none.
+         */
+        public Builder setExecutionMode(@ExecutionMode int executionMode) {
+            if (executionMode != EXECUTION_PLATFORM_THREADS
+                    && executionMode != EXECUTION_VIRTUAL_THREADS)
+                throw new IllegalArgumentException("Unknown execution mode");
+            if (executionMode == EXECUTION_VIRTUAL_THREADS && !uMQTTThreads.hasVirtualThreads())
+                throw new UnsupportedOperationException("No virtual threads in this runtime");
+            config.executionMode = executionMode;
+            return this;
+        }
+
+        /**
+         * Runs subscription callbacks on this many worker threads instead of the one reading
+         * from the broker. Messages on the same topic always go to the same worker, so they
+         * are still handled in order. 0, the default, runs them on the reading thread.
+         * @see uMQTT#getDispatchQueueDepths()
+         */
+        public Builder setDispatchThreads(int dispatchThreads) {
+            if (dispatchThreads < 0)
+                throw new IllegalArgumentException("Dispatch threads can't be negative");
+            config.dispatchThreads = dispatchThreads;
+            return this;
+        }
+
+        /**
+         * Keep-alive period asked for in CONNECT. When nothing was sent to the broker for
+         * this long, a PINGREQ is. 180 seconds by default.
+         * @param keepAlive period in seconds, 0 to turn keep-alive off.
+         */
+        public Builder setKeepAlive(int keepAlive) {
+            if (keepAlive < 0 || keepAlive > 0xffff)
+                throw new IllegalArgumentException("Keep-alive must be 0 to 65535 seconds");
+            config.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * How long to wait for anything, PINGRESP or otherwise, after sending PINGREQ before
+         * the connection is taken as dead and reopened. 10 seconds by default.
+         * @param pingTimeout timeout in seconds, at least 1.
+         */
+        public Builder setPingTimeout(int pingTimeout) {
+            if (pingTimeout < 1)
+                throw new IllegalArgumentException("Ping timeout must be at least a second");
+            config.pingTimeout = pingTimeout;
+            return this;
+        }
+
         public uMQTTConfiguration build() {
             return config;
         }
@@ -83,4 +229,40 @@ public class uMQTTConfiguration {
     int getBrokerPort() {
         return brokerPort;
     }
+
+    int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    int getDispatchThreads() {
+        return dispatchThreads;
+    }
+
+    int getKeepAlive() {
+        return keepAlive;
+    }
+
+    int getPingTimeout() {
+        return pingTimeout;
+    }
+
+    @ExecutionMode int getExecutionMode() {
+        return executionMode;
+    }
+
+    boolean shouldPersistPublishes() {
+        return persistPublishes;
+    }
+
+    boolean shouldPersistInboundState() {
+        return persistInboundState;
+    }
+
+    uMQTTTransport.Factory getTransportFactory() {
+        return transportFactory;
+    }
 }
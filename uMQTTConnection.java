@@ -0,0 +1,236 @@
+package re.usto.umqtt;
+
+import android.support.annotation.IntDef;
+
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import timber.log.Timber;
+
+/**
+ * Owns a client's connection state. Whatever notices trouble (reader, writer, keep-alive,
+ * a refused CONNACK) reports here along with the transport it was using, and only the first
+ * report about the live transport counts: the rest, and those about transports already given
+ * up on, are dropped. One blip thus makes one reconnect.
+ *
+ * <p> Reconnecting waits a random time between 0 and a ceiling that doubles with every failed
+ * attempt, from {@link #INITIAL_BACKOFF} up to {@link #MAX_BACKOFF} ("full jitter"), so
+ * clients dropped together by a broker restart don't come back in lock-step.
+ *
+ * <pre>
+ * DISCONNECTED --connect()--> CONNECTING --socket open--> AWAITING_CONNACK --CONNACK--> CONNECTED
+ *                                  ^    \--failed--\            |  lost/refused/timeout  |
+ *                                  |                v           v                        |
+ *                                  \--delay over-- BACKING_OFF <-------------lost--------/
+ * </pre>
+ * {@link #disconnect()} goes back to DISCONNECTED from anywhere.
+ *
+ * @author gabriel
+ */
+
+class uMQTTConnection {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({STATE_DISCONNECTED, STATE_CONNECTING, STATE_AWAITING_CONNACK, STATE_CONNECTED,
+            STATE_BACKING_OFF})
+    @interface State { }
+
+    static final int
+            STATE_DISCONNECTED = 0,
+            STATE_CONNECTING = 1,
+            STATE_AWAITING_CONNACK = 2,
+            STATE_CONNECTED = 3,
+            STATE_BACKING_OFF = 4;
+
+    static final long INITIAL_BACKOFF = TimeUnit.MILLISECONDS.toNanos(500);
+    static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(2);
+    private static final long CONNACK_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private final uMQTT mController;
+    private final Random mRandom = new Random();
+    // Not a monitor: tearing down closes the transport, which for TLS writes close_notify,
+    // and that mustn't pin a virtual thread
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    // Everything below is guarded by mLock
+    private @State int mState = STATE_DISCONNECTED;
+    // Transport of the connection in AWAITING_CONNACK or CONNECTED
+    private uMQTTTransport mTransport;
+    // Attempts failed since the last accepted connection
+    private int mFailures = 0;
+    private ScheduledFuture<?> mTimer;
+    // Timers set before the last state change see another generation
+    private int mGeneration = 0;
+
+    uMQTTConnection(uMQTT controller) {
+        mController = controller;
+    }
+
+    @State int getState() {
+        mLock.lock();
+        try {
+            return mState;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Starts connecting, unless a connection is already up or on its way.
+     */
+    void connect() {
+        mLock.lock();
+        try {
+            if (mState != STATE_DISCONNECTED) return;
+            mFailures = 0;
+            attempt();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection, if any, and stops reconnecting until {@link #connect()}.
+     */
+    void disconnect() {
+        mLock.lock();
+        try {
+            cancelTimer();
+            mState = STATE_DISCONNECTED;
+            mTransport = null;
+            mController.tearDown(true);
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * The transport reached the broker: reading and writing over it are started, and CONNECT
+     * goes out. Done holding the lock, so {@link #disconnect()} comes either before, and the
+     * transport is refused, or after, and it tears this one down.
+     * @return false if no attempt was waiting for it, and it should be closed.
+     */
+    boolean onSocketOpened(uMQTTTransport transport) {
+        mLock.lock();
+        try {
+            if (mState != STATE_CONNECTING) return false;
+            cancelTimer();
+            mState = STATE_AWAITING_CONNACK;
+            mTransport = transport;
+            final int generation = mGeneration;
+            mTimer = uMQTTThreads.TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mLock.lock();
+                    try {
+                        if (generation != mGeneration) return;
+                        connectionLost(mTransport,
+                                new IOException("Timed out waiting for CONNACK"));
+                    }
+                    finally {
+                        mLock.unlock();
+                    }
+                }
+            }, CONNACK_TIMEOUT, TimeUnit.NANOSECONDS);
+            mController.startConnection(transport);
+            return true;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * The transport couldn't reach the broker.
+     */
+    void onConnectFailed(IOException cause) {
+        mLock.lock();
+        try {
+            if (mState != STATE_CONNECTING) return;
+            backOff(cause);
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * The broker accepted the connection.
+     * @return false if it was given up on already.
+     */
+    boolean onConnected() {
+        mLock.lock();
+        try {
+            if (mState != STATE_AWAITING_CONNACK) return false;
+            cancelTimer();
+            mState = STATE_CONNECTED;
+            mFailures = 0;
+            return true;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Something went wrong with the connection over the transport. Ignored unless that's the
+     * live one.
+     */
+    void connectionLost(uMQTTTransport transport, IOException cause) {
+        mLock.lock();
+        try {
+            if (transport == null || transport != mTransport) return;
+            if (mState != STATE_AWAITING_CONNACK && mState != STATE_CONNECTED) return;
+            mTransport = null;
+            mController.tearDown(false);
+            backOff(cause);
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private void attempt() {
+        cancelTimer();
+        mState = STATE_CONNECTING;
+        mController.scheduleSocketOpening();
+    }
+
+    private void backOff(IOException cause) {
+        cancelTimer();
+        long ceiling = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(mFailures, 20));
+        long delay = (long) (mRandom.nextDouble() * ceiling);
+        ++mFailures;
+        mState = STATE_BACKING_OFF;
+        Timber.w(cause, "Reconnecting in %d ms (attempt %d)",
+                TimeUnit.NANOSECONDS.toMillis(delay), mFailures);
+
+        final int generation = mGeneration;
+        mTimer = uMQTTThreads.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mLock.lock();
+                try {
+                    if (generation == mGeneration) attempt();
+                }
+                finally {
+                    mLock.unlock();
+                }
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelTimer() {
+        ++mGeneration;
+        if (mTimer != null) mTimer.cancel(false);
+        mTimer = null;
+    }
+}
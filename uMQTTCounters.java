@@ -0,0 +1,53 @@
+package re.usto.umqtt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of counters that many threads add to. Each counter is split in stripes, one
+ * of them picked per thread, and read as the sum of its stripes, the way LongAdder does (not
+ * on Android before API 24). Threads adding to the same counter thus rarely touch the same
+ * cache line. Adding never allocates.
+ *
+ * @author gabriel
+ */
+
+class uMQTTCounters {
+
+    // Longs per cache line, stripes are kept at least this far apart
+    private static final int LINE = 8;
+    private static final int MAX_STRIPES = 16;
+
+    private final AtomicLongArray mCells;
+    private final int mStride;
+    private final int mStripeMask;
+
+    uMQTTCounters(int counters) {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors && stripes < MAX_STRIPES) stripes <<= 1;
+        mStripeMask = stripes - 1;
+        // Rounded up to whole lines, plus one so stripes never share one
+        mStride = ((counters + LINE - 1) / LINE + 1) * LINE;
+        mCells = new AtomicLongArray(stripes * mStride);
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return (hash >>> 16) & mStripeMask;
+    }
+
+    void add(int counter, long delta) {
+        mCells.getAndAdd(stripe() * mStride + counter, delta);
+    }
+
+    void increment(int counter) {
+        add(counter, 1);
+    }
+
+    long sum(int counter) {
+        long sum = 0;
+        for (int i = counter; i < mCells.length(); i += mStride) sum += mCells.get(i);
+        return sum;
+    }
+}
@@ -0,0 +1,115 @@
+package re.usto.umqtt;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import timber.log.Timber;
+
+/**
+ * Runs subscription callbacks on a few worker threads instead of the one reading from the
+ * broker, which is then left to framing and acknowledging. Messages are striped over the
+ * workers by topic, so the ones on a topic are still handled in the order they came, while
+ * different topics are handled in parallel.
+ *
+ * <p> Each stripe queues up to {@link #QUEUE_LIMIT} messages. Past that the input service
+ * stops reading until the stripe catches up, as it does for full subscriber buffers.
+ *
+ * @author gabriel
+ */
+
+class uMQTTDispatcher {
+
+    static final int QUEUE_LIMIT = 1024;
+
+    private final uMQTT mController;
+    private final uMQTTInputService mInputService;
+    private final Stripe[] mStripes;
+
+    uMQTTDispatcher(uMQTT controller, uMQTTInputService inputService, int threads) {
+        mController = controller;
+        mInputService = inputService;
+        uMQTTConfiguration configuration = controller.getConfiguration();
+        mStripes = new Stripe[threads];
+        for (int i = 0; i < threads; ++i) {
+            mStripes[i] = new Stripe();
+            mStripes[i].mThread = uMQTTThreads.newThread(configuration.getExecutionMode(),
+                    mStripes[i], "uMQTT-dispatch-" + configuration.getClientId() + "-" + i);
+            mStripes[i].mThread.setDaemon(true);
+        }
+        for (Stripe stripe : mStripes) stripe.mThread.start();
+    }
+
+    /**
+     * Queues the message for its topic's stripe. It is copied first, the one given is only
+     * valid until this returns.
+     */
+    void dispatch(uMQTTMessage message) {
+        int hash = message.getTopic().hashCode();
+        hash ^= hash >>> 16;
+        mStripes[(hash & Integer.MAX_VALUE) % mStripes.length].offer(message.copy());
+    }
+
+    /**
+     * @return How many messages each stripe has waiting, in stripe order.
+     */
+    int[] getQueueDepths() {
+        int[] depths = new int[mStripes.length];
+        for (int i = 0; i < mStripes.length; ++i) depths[i] = mStripes[i].mDepth.get();
+        return depths;
+    }
+
+    void shutdown() {
+        for (Stripe stripe : mStripes) {
+            stripe.mRunning = false;
+            LockSupport.unpark(stripe.mThread);
+        }
+    }
+
+    private final class Stripe implements Runnable {
+
+        private final ConcurrentLinkedQueue<uMQTTMessage> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mDepth = new AtomicInteger(0);
+        private final AtomicBoolean mParked = new AtomicBoolean(false);
+        // Whether this stripe is keeping the input service from reading
+        private final AtomicBoolean mPausing = new AtomicBoolean(false);
+        private volatile boolean mRunning = true;
+        private Thread mThread;
+
+        void offer(uMQTTMessage message) {
+            mQueue.offer(message);
+            if (mDepth.incrementAndGet() >= QUEUE_LIMIT && mPausing.compareAndSet(false, true))
+                mInputService.pauseReading();
+            if (mParked.compareAndSet(true, false)) LockSupport.unpark(mThread);
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                uMQTTMessage message = mQueue.poll();
+                if (message == null) {
+                    mParked.set(true);
+                    // Something might have been queued before we flagged ourselves parked
+                    if (mQueue.isEmpty()) LockSupport.park(this);
+                    mParked.set(false);
+                    continue;
+                }
+
+                if (mDepth.decrementAndGet() < QUEUE_LIMIT
+                        && mPausing.compareAndSet(true, false))
+                    mInputService.resumeReading();
+
+                try {
+                    mController.publishCallback(message);
+                }
+                catch (RuntimeException e) {
+                    // A misbehaving callback shouldn't stop every topic on this stripe
+                    Timber.e(e, "Uncaught exception in subscription callback");
+                }
+            }
+
+            if (mPausing.compareAndSet(true, false)) mInputService.resumeReading();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * Thread owning one selector and every session registered with it. Each turn handles the
+ * ready channels, then the tasks other threads handed over, and once per tick the session
+ * timers.
+ *
+ * @author gabriel
+ */
+
+class uMQTTEventLoop implements Runnable {
+
+    private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+    private static final int GATHER_LIMIT = 64;
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    // Set while the selector is already being woken up, so we don't do it again for nothing
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean(false);
+    private final uMQTTBufferPool mBufferPool;
+    private final int mMaxFrameSize;
+    private volatile boolean mRunning = true;
+
+    // Event loop only
+    private final ArrayList<uMQTTSession> mSessions = new ArrayList<>();
+    private final ByteBuffer[] mGatherBuffers = new ByteBuffer[GATHER_LIMIT];
+
+    uMQTTEventLoop(String name, int maxFrameSize) throws IOException {
+        mSelector = Selector.open();
+        mMaxFrameSize = maxFrameSize;
+        mBufferPool = new uMQTTBufferPool(maxFrameSize);
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    void shutdown() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    uMQTTBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Scratch array for gathering writes, only to be used on this loop.
+     */
+    ByteBuffer[] getGatherBuffers() {
+        return mGatherBuffers;
+    }
+
+    void execute(Runnable task) {
+        mTasks.offer(task);
+        if (Thread.currentThread() != mThread && mWakeupPending.compareAndSet(false, true))
+            mSelector.wakeup();
+    }
+
+    SelectionKey register(SelectableChannel channel, int ops, uMQTTSession session)
+            throws IOException {
+        SelectionKey key = channel.register(mSelector, ops, session);
+        session.mLoopIndex = mSessions.size();
+        mSessions.add(session);
+        return key;
+    }
+
+    void unregister(uMQTTSession session) {
+        int index = session.mLoopIndex;
+        if (index < 0) return;
+        // Swap with the last one, order doesn't matter here
+        uMQTTSession last = mSessions.remove(mSessions.size() - 1);
+        if (last != session) {
+            mSessions.set(index, last);
+            last.mLoopIndex = index;
+        }
+        session.mLoopIndex = -1;
+    }
+
+    @Override
+    public void run() {
+        long nextTick = System.nanoTime() + TICK;
+        while (mRunning) {
+            try {
+                long timeout = TimeUnit.NANOSECONDS.toMillis(nextTick - System.nanoTime());
+                if (mTasks.isEmpty()) mSelector.select(Math.max(timeout, 1));
+                else mSelector.selectNow();
+                mWakeupPending.set(false);
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid())
+                        ((uMQTTSession) key.attachment()).onReady(key.readyOps());
+                }
+
+                Runnable task;
+                while ((task = mTasks.poll()) != null) task.run();
+
+                long now = System.nanoTime();
+                if (now - nextTick >= 0) {
+                    // Backwards, so sessions closing on their tick don't make us skip others
+                    for (int i = mSessions.size() - 1; i >= 0; --i) {
+                        if (i < mSessions.size()) mSessions.get(i).onTick(now);
+                    }
+                    nextTick = now + TICK;
+                }
+            }
+            catch (IOException e) {
+                Timber.e(e, "Event loop selector failed");
+                break;
+            }
+            catch (RuntimeException e) {
+                // A misbehaving listener shouldn't take every other session down with it
+                Timber.e(e, "Uncaught exception in event loop");
+            }
+        }
+
+        for (int i = mSessions.size() - 1; i >= 0; --i) mSessions.get(i).closeChannel(null);
+        try {
+            mSelector.close();
+        }
+        catch (IOException e) {
+            Timber.w(e, "Could not close selector");
+        }
+    }
+}
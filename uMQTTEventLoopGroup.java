@@ -0,0 +1,76 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small set of event loop threads driving many broker sessions, for when a thread per
+ * connection is too much (e.g. gateways holding thousands of sessions). Sessions are spread
+ * over the loops as they are created, and stay on theirs for their whole life.
+ *
+ * <p> This is independent from the {@link uMQTT} controller: sessions only speak the
+ * protocol, and leave persistence and reconnection to whoever created them.
+ *
+ * @author gabriel
+ */
+
+public class uMQTTEventLoopGroup {
+
+    private final uMQTTEventLoop[] mLoops;
+    private final AtomicInteger mNext = new AtomicInteger(0);
+
+    /**
+     * One loop per available processor.
+     */
+    public uMQTTEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public uMQTTEventLoopGroup(int threads) throws IOException {
+        this(threads, uMQTTConfiguration.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize received frames bigger than this are dropped.
+     */
+    public uMQTTEventLoopGroup(int threads, int maxFrameSize) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("At least one loop is needed");
+        mLoops = new uMQTTEventLoop[threads];
+        for (int i = 0; i < threads; ++i) {
+            mLoops[i] = new uMQTTEventLoop("uMQTT-loop-" + i, maxFrameSize);
+        }
+        for (uMQTTEventLoop loop : mLoops) loop.start();
+    }
+
+    public uMQTTSession connect(String host, int port, String clientId, short keepAlive,
+                                uMQTTSession.Listener listener) {
+        return connect(host, port, clientId, null, null, keepAlive, listener);
+    }
+
+    /**
+     * Starts connecting a new session. The listener is told once the broker accepts it.
+     * @param keepAlive keep-alive period in seconds, 0 to disable it.
+     */
+    public uMQTTSession connect(String host, int port, String clientId, String username,
+                                String password, short keepAlive,
+                                uMQTTSession.Listener listener) {
+        uMQTTEventLoop loop = mLoops[(mNext.getAndIncrement() & Integer.MAX_VALUE)
+                % mLoops.length];
+        final uMQTTSession session = new uMQTTSession(loop, host, port, clientId,
+                username, password, keepAlive, listener);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                session.open();
+            }
+        });
+        return session;
+    }
+
+    /**
+     * Stops every loop, closing their sessions without DISCONNECT.
+     */
+    public void shutdown() {
+        for (uMQTTEventLoop loop : mLoops) loop.shutdown();
+    }
+}
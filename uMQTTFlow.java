@@ -0,0 +1,32 @@
+package re.usto.umqtt;
+
+/**
+ * Same contract as {@code java.util.concurrent.Flow} (and Reactive Streams), which older
+ * Android versions don't have. Adapting to either is a matter of forwarding each call.
+ *
+ * @author gabriel
+ */
+
+public final class uMQTTFlow {
+
+    private uMQTTFlow() { }
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Lets up to n more items be delivered. n must be positive.
+         */
+        void request(long n);
+        void cancel();
+    }
+}
@@ -3,11 +3,10 @@ package re.usto.umqtt;
 import android.support.annotation.IntDef;
 import android.support.annotation.IntRange;
 
-import java.io.UnsupportedEncodingException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import timber.log.Timber;
 
@@ -27,12 +26,12 @@ public class uMQTTFrame {
     private short packetId;
 
     private byte[] packet = null;
+    // Where packet ids come from, each client has its own
+    private uMQTTPacketIdAllocator allocator;
 
     private static final String PROTOCOL = "MQTT";
     private static final byte MQTT_VERSION = 0b100;
     private static final int CONNECT_VARIABLE_HEADER_BASE_SIZE = 6;
-    private static AtomicInteger packetSequence = new AtomicInteger(
-            uMQTT.getInstance().getTopPacketId());
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({
@@ -83,9 +82,22 @@ public class uMQTTFrame {
             frame = new uMQTTFrame();
             frame.type = (byte) packetType;
             frame.fixedHeader = (byte) (packetType << 4);
+            // PUBREL has its reserved flags set, like SUBSCRIBE
+            if (packetType == MQ_PUBREL) frame.fixedHeader |= 0b0010;
+        }
+
+        /**
+         * Packet ids for this frame are taken from the given allocator. Needed for any frame
+         * that gets its id on build: publishes, whatever their QoS, and (un)subscriptions.
+         */
+        Builder setPacketIdAllocator(uMQTTPacketIdAllocator allocator) {
+            frame.allocator = allocator;
+            return this;
         }
 
         public Builder setPacketId(short packetId) {
+            // Kept on the frame too, for whoever is told about it being sent
+            frame.packetId = packetId;
             frame.variableHeader = new byte[2];
             frame.variableHeader[0] = (byte)((packetId >> 8) & 0xff);
             frame.variableHeader[1] = (byte)(packetId & 0xff);
@@ -122,7 +134,7 @@ public class uMQTTFrame {
          * @param payload the string corresponding to the payload
          */
         public PublishBuilder setPayload(String payload) {
-            return setPayload(payload.getBytes());
+            return setPayload(payload.getBytes(uMQTTMessage.UTF_8));
         }
 
         /**
@@ -135,6 +147,15 @@ public class uMQTTFrame {
             return this;
         }
 
+        /**
+         * PUBLISH packets specific data. The payload to be published.
+         * @param payload buffer whose remaining bytes are the payload. Its position is left
+         *                untouched
+         */
+        public PublishBuilder setPayload(ByteBuffer payload) {
+            return setPayload(toByteArray(payload));
+        }
+
         public PublishBuilder setPacketId(short packetId) {
             mPacketId = packetId;
             return this;
@@ -169,10 +190,7 @@ public class uMQTTFrame {
 
             if (mQoSLevel > 0) {
                 frame.variableHeader = new byte[mTopic.length + 2];
-                for (int i = 0; i < mTopic.length; ++i) {
-                    frame.variableHeader[i] = mTopic[i];
-
-                }
+                System.arraycopy(mTopic, 0, frame.variableHeader, 0, mTopic.length);
 
                 if (mPacketId == 0) {
                     frame.setPacketId();
@@ -240,18 +258,22 @@ public class uMQTTFrame {
             // Set QoS to 1 (mandatory)
             frame.fixedHeader |= 0b01 << 1;
 
-            ArrayList<Byte> buildPayload = new ArrayList<>();
+            // Encode every topic once, so we know the exact payload size before copying
+            byte[][] encodedTopics = new byte[topics.length][];
+            int payloadSize = 0;
             for (int i = 0; i < topics.length; i++) {
-                byte[] topic = frame.encodeString(topics[i]);
-                for (byte _byte : topic) {
-                    buildPayload.add(_byte);
-                }
-                if (!unsubscribe) buildPayload.add(qosLevels[i]);
+                encodedTopics[i] = frame.encodeString(topics[i]);
+                payloadSize += encodedTopics[i].length;
+                if (!unsubscribe) payloadSize += 1;
             }
 
-            frame.payload = new byte[buildPayload.size()];
-            for (int i = 0; i < buildPayload.size(); ++i) {
-                frame.payload[i] = buildPayload.get(i);
+            frame.payload = new byte[payloadSize];
+            int offset = 0;
+            for (int i = 0; i < topics.length; i++) {
+                System.arraycopy(encodedTopics[i], 0, frame.payload, offset,
+                        encodedTopics[i].length);
+                offset += encodedTopics[i].length;
+                if (!unsubscribe) frame.payload[offset++] = qosLevels[i];
             }
 
             frame.setPacketId();
@@ -321,6 +343,7 @@ public class uMQTTFrame {
         public ConnectBuilder setKeepAlive(short keepAlive) {
             frame.variableHeader[i + 1] = (byte)((keepAlive >> 8) & 0xff);
             frame.variableHeader[i + 2] = (byte)(keepAlive & 0xff);
+            mKeepAliveSet = true;
             return this;
         }
 
@@ -358,127 +381,139 @@ public class uMQTTFrame {
 
             if (!mKeepAliveSet) setKeepAlive(DEFAULT_KEEP_ALIVE);
 
-            ArrayList<Byte> payload = new ArrayList<>();
-            for (byte _byte : clientId) {
-                payload.add(_byte);
-            }
-
-            for (byte _byte : willTopic != null ? willTopic : new byte[]{}) {
-                payload.add(_byte);
-            }
-
-            for (byte _byte : willMessage != null ? willMessage : new byte[]{}) {
-                payload.add(_byte);
-            }
-
-            for (byte _byte : username != null ? username : new byte[]{}) {
-                payload.add(_byte);
-            }
+            frame.payload = new byte[length(clientId) + length(willTopic)
+                    + length(willMessage) + length(username) + length(password)];
+            int offset = 0;
+            offset = append(clientId, offset);
+            offset = append(willTopic, offset);
+            offset = append(willMessage, offset);
+            offset = append(username, offset);
+            append(password, offset);
+            return super.build();
+        }
 
-            for (byte _byte : password != null ? password : new byte[]{}) {
-                payload.add(_byte);
-            }
+        private static int length(byte[] field) {
+            return field != null ? field.length : 0;
+        }
 
-            frame.payload = new byte[payload.size()];
-            for (int i = 0; i < payload.size(); ++i) {
-                frame.payload[i] = payload.get(i);
-            }
-            return super.build();
+        private int append(byte[] field, int offset) {
+            if (field == null) return offset;
+            System.arraycopy(field, 0, frame.payload, offset, field.length);
+            return offset + field.length;
         }
     }
 
     /**
      * Gets string entry and encodes to byte through UTF to MQTT frame.
      * @param s string to be encoded.
-     * @return Array of bytes corresponding to encoded string.
+     * @return Array of bytes corresponding to encoded string, prefixed by its UTF-8 length.
      */
     private byte[] encodeString(String s) {
-        byte[] encodedString = new byte[s.length() + 2];
-        encodedString[0] = (byte)((s.length() >> 8) & 0xff);
-        encodedString[1] = (byte)(s.length() & 0xff);
-        try {
-            byte[] string = s.getBytes("UTF-8");
-            int j = 2;
-            for (byte _byte : string) {
-                encodedString[j++] = _byte;
-            }
-        }
-        catch (UnsupportedEncodingException e) {
-            throw new UnsupportedOperationException(
-                    "UTF-8 support not found. Needed for MQTT strings");
-        }
-
+        byte[] string = s.getBytes(uMQTTMessage.UTF_8);
+        if (string.length > 0xffff)
+            throw new IllegalArgumentException("MQTT strings are limited to 65535 bytes");
+
+        byte[] encodedString = new byte[string.length + 2];
+        encodedString[0] = (byte)((string.length >> 8) & 0xff);
+        encodedString[1] = (byte)(string.length & 0xff);
+        System.arraycopy(string, 0, encodedString, 2, string.length);
         return encodedString;
     }
 
-    private byte[] encodedRemainingSize() {
+    private int remainingSize() {
         int size = variableHeader != null ? variableHeader.length : 0;
         size += payload != null ? payload.length : 0;
-        ArrayList<Byte> bytes = new ArrayList<>();
+        return size;
+    }
 
+    /**
+     * Number of bytes the MQTT variable length encoding takes for a given remaining size.
+     * @param remainingSize size of variable header plus payload.
+     * @return Amount of "remaining length" digits, from 1 to 4.
+     */
+    static int encodedRemainingSizeLength(int remainingSize) {
+        if (remainingSize < 0x80) return 1;
+        if (remainingSize < 0x4000) return 2;
+        if (remainingSize < 0x200000) return 3;
+        return 4;
+    }
+
+    static void writeRemainingSize(ByteBuffer dst, int size) {
         do {
             byte digit = (byte)(size % 0x80);
             size /= 0x80;
             if (size > 0) {
                 digit |= 0x80;
             }
-            bytes.add(digit);
+            dst.put(digit);
         } while (size > 0);
-        byte[] encodedSize = new byte[bytes.size()];
-        int i = 0;
-        for (Byte digit : bytes) encodedSize[i++] = digit;
-        return encodedSize;
     }
 
-    private void setPacketId() {
-        if (packetSequence.get() >= Short.MAX_VALUE)
-            packetSequence.set(packetId = 1);
+    /**
+     * @return Exact size in bytes of this frame once encoded, fixed header included.
+     */
+    public int getEncodedSize() {
+        int remainingSize = remainingSize();
+        return 1 + encodedRemainingSizeLength(remainingSize) + remainingSize;
+    }
 
-        packetId = (short) (packetSequence.getAndIncrement() & 0xffff);
-        uMQTT.getInstance().updateTopPacketId(packetId);
+    /**
+     * Writes the full frame into the buffer, starting at its current position. Nothing is
+     * allocated, so callers may keep and reuse the same buffer for every frame they send.
+     * @param dst buffer with at least {@link #getEncodedSize()} bytes remaining.
+     * @return Amount of bytes written.
+     * @throws BufferOverflowException if the frame does not fit in the buffer. The buffer
+     * position is left untouched in this case.
+     */
+    public int encode(ByteBuffer dst) {
+        int remainingSize = remainingSize();
+        int size = 1 + encodedRemainingSizeLength(remainingSize) + remainingSize;
+        if (dst.remaining() < size) throw new BufferOverflowException();
+
+        dst.put(fixedHeader);
+        writeRemainingSize(dst, remainingSize);
+        if (variableHeader != null) dst.put(variableHeader);
+        if (payload != null) dst.put(payload);
+        return size;
+    }
+
+    private uMQTTPacketIdAllocator getAllocator() {
+        if (allocator == null)
+            throw new IllegalStateException("No packet id allocator set for this frame");
+        return allocator;
+    }
+
+    private void setPacketId() {
+        packetId = getAllocator().allocate();
     }
 
     private void setPacketId(short packetId) {
         this.packetId = packetId;
+        getAllocator().reserve(packetId);
     }
 
     public short getPacketId() {
         return packetId;
     }
 
+    @MQPacketType
+    int getType() {
+        return (fixedHeader >> 4) & 0xf;
+    }
+
     public byte[] getPacket() {
-        if ((this.packet != null) && ((this.packet[0] != 0x00) && (this.packet[1] != 0x00))) {
+        if (this.packet != null) {
             return this.packet;
         }
 
-        ArrayList<Byte> packet = new ArrayList<>();
-        packet.add(fixedHeader);
-        for(byte _byte : encodedRemainingSize()) {
-            packet.add(_byte);
-        }
-
-        if (variableHeader != null) {
-            for (byte _byte : variableHeader) {
-                packet.add(_byte);
-            }
-        }
-
-        if (payload != null) {
-            for (byte _byte : payload) {
-                packet.add(_byte);
-            }
-        }
-
-        this.packet = new byte[packet.size()];
-        for (int i = 0; i < packet.size(); ++i) {
-            this.packet[i] = packet.get(i);
-        }
-
+        this.packet = new byte[getEncodedSize()];
+        encode(ByteBuffer.wrap(this.packet));
         return this.packet;
     }
 
     public void setPacketAsDuplicate() {
         fixedHeader |= 1 << 3;
+        if (packet != null) packet[0] = fixedHeader;
     }
 
     public boolean isPacketDuplicate() {
@@ -488,4 +523,13 @@ public class uMQTTFrame {
     static short fetchBytes(byte msb, byte lsb) {
         return (short) (((msb << 8) | (lsb & 0xff)) & 0xffff);
     }
+
+    /**
+     * @return Copy of the remaining bytes of the buffer, whose position is left untouched.
+     */
+    static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
 }
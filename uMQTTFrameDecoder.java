@@ -0,0 +1,224 @@
+package re.usto.umqtt;
+
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import timber.log.Timber;
+
+/**
+ * Cuts the bytes read from a connection into frames. Bytes are read into a 4KB buffer, and
+ * every complete frame in it is handed over in place. A frame that doesn't fit is received
+ * into a pooled buffer sized after its remaining length, and frames over the maximum size
+ * are skipped as they arrive.
+ *
+ * <p> Usage is: read into {@link #getReadBuffer()}, then call {@link #onRead()}. Each
+ * connection has its own decoder, only ever used from the thread reading it.
+ *
+ * @author gabriel
+ */
+
+class uMQTTFrameDecoder {
+
+    interface Handler {
+        /**
+         * The frame is only valid until this returns, the buffer is reused afterwards.
+         */
+        void onFrame(byte[] buffer, int offset, int size) throws IOException;
+
+        /**
+         * A QoS 1/2 publish over the maximum frame size is being skipped. It should be
+         * acknowledged so the broker doesn't resend it.
+         */
+        void onOverflowedPublish(byte qosLevel, short packetId);
+    }
+
+    private static final int BYTES_FIXED_HEADER = 2;
+    private static final int BYTES_MAX_REMAINING_SIZE = 4;
+    private static final int BYTES_OVERFLOW_HANDLING = 1024;
+    // Size = 4KB. Frames that don't fit here are received into a pooled buffer
+    private static final int READ_BUFFER_LENGTH = 4 * 1024;
+
+    private final Handler mHandler;
+    private final uMQTTBufferPool mBufferPool;
+    private final int mMaxFrameSize;
+    // Null when nobody is counting
+    private final uMQTTMetrics mMetrics;
+
+    private final byte[] mBuffer = new byte[READ_BUFFER_LENGTH];
+    private final ByteBuffer mReadView = ByteBuffer.wrap(mBuffer);
+    // Start of the first byte not parsed yet, and end of the bytes read
+    private int mReadOffset = 0;
+    private int mWriteOffset = 0;
+    // Bytes of an overflowing frame still to be discarded
+    private long mOverflow = 0L;
+
+    // Frame bigger than the read buffer being received, and how much of it we already have
+    private byte[] mFrameBuffer;
+    private ByteBuffer mFrameView;
+    private int mFrameSize = 0;
+
+    uMQTTFrameDecoder(int maxFrameSize, uMQTTBufferPool bufferPool, Handler handler) {
+        this(maxFrameSize, bufferPool, handler, null);
+    }
+
+    /**
+     * @param metrics where skipped frames and malformed input are counted.
+     */
+    uMQTTFrameDecoder(int maxFrameSize, uMQTTBufferPool bufferPool, Handler handler,
+                      uMQTTMetrics metrics) {
+        mMaxFrameSize = maxFrameSize;
+        mBufferPool = bufferPool;
+        mHandler = handler;
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return Where the next read should go, positioned after the bytes we already have.
+     */
+    ByteBuffer getReadBuffer() {
+        if (mFrameBuffer != null) return mFrameView;
+        mReadView.limit(READ_BUFFER_LENGTH).position(mWriteOffset);
+        return mReadView;
+    }
+
+    /**
+     * Dispatches whatever frames the last read into {@link #getReadBuffer()} completed.
+     */
+    @WorkerThread
+    void onRead() throws IOException {
+        if (mFrameBuffer != null) {
+            if (!mFrameView.hasRemaining()) dispatchFrameBuffer();
+            return;
+        }
+        mWriteOffset = mReadView.position();
+        parse();
+    }
+
+    void reset() {
+        if (mFrameBuffer != null) mBufferPool.release(mFrameBuffer);
+        mFrameBuffer = null;
+        mFrameView = null;
+        mFrameSize = 0;
+        mReadOffset = 0;
+        mWriteOffset = 0;
+        mOverflow = 0L;
+    }
+
+    /**
+     * Dispatches every complete frame found between {@link #mReadOffset} and
+     * {@link #mWriteOffset}. A partial frame left at the end is moved to the start of the
+     * buffer, so the next read appends the rest of it, unless it is too big for it: in that
+     * case it is moved to a pooled buffer sized after its remaining length.
+     */
+    @WorkerThread
+    private void parse() throws IOException {
+        byte[] buffer = mBuffer;
+        while (true) {
+            int available = mWriteOffset - mReadOffset;
+
+            if (mOverflow > 0) {
+                int skipped = (int) Math.min(mOverflow, available);
+                mReadOffset += skipped;
+                mOverflow -= skipped;
+                if (mOverflow > 0) break;
+                continue;
+            }
+
+            if (available < BYTES_FIXED_HEADER) break;
+
+            // Decode the "remaining length" digits, which might not have arrived yet
+            int remainingSize = 0;
+            int multiplier = 1;
+            int i = mReadOffset + 1;
+            boolean sizeComplete = false;
+            for (; i < mWriteOffset && i <= mReadOffset + BYTES_MAX_REMAINING_SIZE; ++i) {
+                int digit = buffer[i];
+                remainingSize += (digit & 0x7f) * multiplier;
+                multiplier *= 0x80;
+                if ((digit & 0x80) == 0) {
+                    sizeComplete = true;
+                    break;
+                }
+            }
+            if (!sizeComplete) {
+                if (i > mReadOffset + BYTES_MAX_REMAINING_SIZE) {
+                    if (mMetrics != null) mMetrics.decodeError();
+                    throw new IOException("Malformed remaining length received");
+                }
+                break;
+            }
+
+            int size = (i + 1 - mReadOffset) + remainingSize;
+            if (size > mMaxFrameSize) {
+                Timber.w("Ignoring overflowing message (%d bytes)", size);
+                if (((buffer[mReadOffset] >> 4) & 0xf) == uMQTTFrame.MQ_PUBLISH) {
+                    // We need the topic and packet id before we can acknowledge it
+                    if (available < BYTES_OVERFLOW_HANDLING) break;
+                    handleOverflowedPublish(buffer, mReadOffset);
+                }
+                if (mMetrics != null) mMetrics.frameOverflowed();
+                mOverflow = size;
+                continue;
+            }
+
+            if (available >= size) {
+                mHandler.onFrame(buffer, mReadOffset, size);
+                mReadOffset += size;
+            }
+            else {
+                if (size > READ_BUFFER_LENGTH) {
+                    // Whatever we read is the start of this frame, the rest comes later
+                    mFrameBuffer = mBufferPool.acquire(size);
+                    mFrameView = ByteBuffer.wrap(mFrameBuffer, available, size - available);
+                    mFrameSize = size;
+                    System.arraycopy(buffer, mReadOffset, mFrameBuffer, 0, available);
+                    mReadOffset = mWriteOffset;
+                }
+                break;
+            }
+        }
+
+        if (mReadOffset == mWriteOffset) {
+            mReadOffset = 0;
+            mWriteOffset = 0;
+        }
+        else if (mReadOffset > 0) {
+            System.arraycopy(buffer, mReadOffset, buffer, 0, mWriteOffset - mReadOffset);
+            mWriteOffset -= mReadOffset;
+            mReadOffset = 0;
+        }
+    }
+
+    @WorkerThread
+    private void dispatchFrameBuffer() throws IOException {
+        byte[] frame = mFrameBuffer;
+        mFrameBuffer = null;
+        mFrameView = null;
+        try {
+            mHandler.onFrame(frame, 0, mFrameSize);
+        }
+        finally {
+            mBufferPool.release(frame);
+        }
+    }
+
+    private void handleOverflowedPublish(byte[] message, int offset) {
+        byte qosLevel = (byte)((message[offset] >> 1) & 0b11);
+        if (qosLevel == 0) return;
+
+        // This is intended, just for us to skip the "remaining length" part
+        int i = offset + 1;
+        while((message[i] & 0x80) != 0) ++i;
+
+        // i is pointing to the last digit of the "remaining length" part, skip it.
+        i += 1;
+
+        // Now lets see the size of the topic name and skip this much
+        i += (uMQTTFrame.fetchBytes(message[i], message[i + 1]) & 0xffff) + 2;
+
+        // Now we can see the packet id. The caller takes care of skipping the full message
+        mHandler.onOverflowedPublish(qosLevel, uMQTTFrame.fetchBytes(message[i], message[i + 1]));
+    }
+}
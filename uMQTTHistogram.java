@@ -0,0 +1,98 @@
+package re.usto.umqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values, typically latencies in nanoseconds, that any
+ * thread can record into without locking or allocating.
+ *
+ * <p> Buckets are log-linear: values under 64 get a bucket each, and every power of two above
+ * that is split in 32 equal buckets, so a value is known to within about 3% of itself
+ * whatever its magnitude. That takes 1888 counters for the whole long range. Percentiles
+ * are read off the counters as they are when asked, without stopping recorders.
+ *
+ * @author gabriel
+ */
+
+public class uMQTTHistogram {
+
+    // 32 buckets per power of two
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int LINEAR_LIMIT = 1 << (SUB_BUCKET_BITS + 1);
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return The highest value that lands in the bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = (bucket & ((1 << SUB_BUCKET_BITS) - 1)) + (1 << SUB_BUCKET_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Negative values are recorded as 0, a clock going backwards isn't worth failing over.
+     */
+    void record(long value) {
+        if (value < 0) value = 0;
+        mCounts.getAndIncrement(bucketOf(value));
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) max = mMax.get();
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; ++i) count += mCounts.get(i);
+        return count;
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return The value at or under which that share of the recorded ones fall, rounded up to
+     * its bucket's highest value but never above the largest recorded. 0 if nothing was
+     * recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestValueOf(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Clears the counts. Values recorded while this runs may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i) mCounts.set(i, 0);
+        mMax.set(0);
+    }
+}
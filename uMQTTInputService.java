@@ -1,13 +1,9 @@
 package re.usto.umqtt;
 
-import android.support.annotation.IntDef;
-import android.support.annotation.WorkerThread;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import timber.log.Timber;
 
@@ -17,207 +13,158 @@ import timber.log.Timber;
 
 public class uMQTTInputService {
 
-    private Thread mTCPListenerThread;
-    private boolean mRun = true;
-    private InputStream mInputStream;
-    private static uMQTTInputService mInstance;
+    private volatile Thread mTCPListenerThread;
+    private volatile boolean mRun = true;
+    // Subscriber buffers that are full. Reading stops while there's any, so the broker is
+    // held back by TCP flow control instead of us buffering without bound
+    private final AtomicInteger mReadPauses = new AtomicInteger(0);
+    private volatile uMQTTTransport mTransport;
+    private final uMQTT mController;
 
-    private static final int BYTES_FIXED_HEADER = 2;
-    private static final int BYTES_SINGLE_STEP = 1;
-    private static final int BYTES_OVERFLOW_HANDLING = 1024;
-    private static int readStepSize = BYTES_SINGLE_STEP;
-    private static int remainingSize = 0;
-    private static int readOffset = 0;
-    private static int multiplier = 1;
-    private static long overflow = 0L;
     private boolean mWaitingConnack = true;
+    private uMQTTBufferPool mBufferPool;
+    private int mMaxFrameSize;
+    private uMQTTFrameDecoder mDecoder;
 
-    private static final int
-            RS_AWAITING = 0,
-            RS_FETCHING_REMAINING_SIZE = 1,
-            RS_FETCHING_FULL_PACKET = 2,
-            RS_HANDLING_OVERFLOW = 3;
-
-    @Retention(RetentionPolicy.SOURCE)
-    @IntDef({RS_AWAITING, RS_FETCHING_REMAINING_SIZE,
-            RS_FETCHING_FULL_PACKET, RS_HANDLING_OVERFLOW})
-    private @interface MQReadState {
-    }
-
-    private @MQReadState
-    int mReadState;
-
-    // Size = 4MB
-    private static final int INPUT_BUFFER_LENGTH = 4 * 1024 * 1024;
-    private static byte[] buffer = new byte[INPUT_BUFFER_LENGTH];
-
-    private uMQTTInputService() {
+    uMQTTInputService(uMQTT controller) {
+        mController = controller;
         mWaitingConnack = true;
-        setListenerAwaiting();
-    }
-
-    static uMQTTInputService getInstance() {
-        if (mInstance == null) mInstance = new uMQTTInputService();
-        return mInstance;
     }
 
     private Runnable mListener = new Runnable() {
         @Override
         public void run() {
+            uMQTTTransport transport = mTransport;
+            uMQTTFrameDecoder decoder = mDecoder;
             try {
                 while (mRun) {
-                    if ((readOffset + readStepSize) > INPUT_BUFFER_LENGTH) {
-                        Timber.w("Ignoring overflowing message (%d bytes)", readStepSize);
-                        if (((buffer[0] >> 4) & 0xf) == uMQTTFrame.MQ_PUBLISH)
-                            setListenerOverflowed();
-                        else {
-                            skipMessageOverflow();
-                            setListenerAwaiting();
-                        }
+                    if (mReadPauses.get() > 0) {
+                        LockSupport.park(this);
+                        continue;
                     }
-                    int readSize = mInputStream.read(buffer, readOffset, readStepSize);
-                    if (readSize > 0)
-                        parseSocketInput(buffer, readSize);
-                    else if (readSize == -1 && mRun) {
+
+                    // Read as much as the transport has for us, frames are cut out afterwards
+                    int readSize = transport.read(decoder.getReadBuffer());
+                    if (readSize > 0) {
+                        mController.getKeepAlive().onRead();
+                        decoder.onRead();
+                    }
+
+                    if (readSize == -1 && mRun) {
                         throw new IOException("Connection closed by broker.");
                     }
                 }
             }
             catch (IOException e) {
-                if (mRun) {
-                    stop();
-                    uMQTT.getInstance().close();
-                    uMQTT.getInstance().open();
-                }
-                else stop();
+                // A reader left over from a connection already dropped has nothing to stop
+                if (mTransport != transport) return;
+                stop();
+                mController.connectionLost(transport, e);
             }
         }
     };
 
     /**
-     * Socket input instance is necessary here, that's where our service
+     * Transport instance is necessary here, that's where our service
      * will read from.
      *
-     * @param mqttSocketInput The InputStream from the socket.
+     * @param transport The connected transport to the broker.
      */
-    void start(InputStream mqttSocketInput) {
+    void start(uMQTTTransport transport) {
         mRun = true;
-        mInputStream = mqttSocketInput;
+        mTransport = transport;
         mWaitingConnack = true;
-        mTCPListenerThread = new Thread(mListener);
+        resetListener();
+        uMQTTConfiguration configuration = mController.getConfiguration();
+        mTCPListenerThread = uMQTTThreads.newThread(configuration.getExecutionMode(),
+                mListener, "uMQTT-input-" + configuration.getClientId());
         mTCPListenerThread.start();
-        setListenerAwaiting();
-        uMQTT.getInstance().establishConnection();
+        mController.establishConnection();
     }
 
     void stop() {
         mRun = false;
-        mInputStream = null;
+        mTransport = null;
+        LockSupport.unpark(mTCPListenerThread);
     }
 
-    @WorkerThread
-    private synchronized void setListenerAwaiting() {
-        mReadState = RS_AWAITING;
-        readOffset = 0;
-        remainingSize = 0;
-        multiplier = 1;
-        readStepSize = BYTES_SINGLE_STEP;
+    /**
+     * Stops reading from the broker once the read in progress, if any, is handled. Every
+     * call must be matched by a {@link #resumeReading()}.
+     */
+    void pauseReading() {
+        mReadPauses.incrementAndGet();
     }
 
-    @WorkerThread
-    private synchronized void setListenerFetchingRemainingSize() {
-        mReadState = RS_FETCHING_REMAINING_SIZE;
-        readOffset += BYTES_SINGLE_STEP;
-        remainingSize = 0;
+    void resumeReading() {
+        if (mReadPauses.decrementAndGet() == 0) LockSupport.unpark(mTCPListenerThread);
     }
 
-    @WorkerThread
-    private synchronized void setListenerFetchingFullPacket() {
-        mReadState = RS_FETCHING_FULL_PACKET;
-        readStepSize = remainingSize;
+    boolean isReadingPaused() {
+        return mReadPauses.get() > 0;
     }
 
-    @WorkerThread
-    private synchronized void setListenerOverflowed() {
-        mReadState = RS_HANDLING_OVERFLOW;
-        overflow = readStepSize;
-        // 1kb, far less then buffer size, probably enough to get packetId
-        readStepSize = BYTES_OVERFLOW_HANDLING;
+    private void resetListener() {
+        int configuredMaxFrameSize = mController.getConfiguration().getMaxFrameSize();
+        if (mBufferPool == null || mMaxFrameSize != configuredMaxFrameSize) {
+            mMaxFrameSize = configuredMaxFrameSize;
+            mBufferPool = new uMQTTBufferPool(mMaxFrameSize);
+        }
+        mDecoder = new uMQTTFrameDecoder(mMaxFrameSize, mBufferPool, mFrameHandler,
+                mController.getMetrics());
     }
 
-    @WorkerThread
-    private synchronized void parseSocketInput(byte[] excerpt, int readSize) {
-        switch (mReadState) {
-            case RS_AWAITING:
-                @uMQTTFrame.MQPacketType int type = (excerpt[0] >> 4) & 0xf;
-                if (mWaitingConnack && type != uMQTTFrame.MQ_CONNACK) {
-                    break;
-                }
-                else if (mWaitingConnack) mWaitingConnack = false;
-                setListenerFetchingRemainingSize();
-                break;
-            case RS_FETCHING_REMAINING_SIZE:
-                int digit = excerpt[readOffset];
-                remainingSize += (digit & 0x7f) * multiplier;
-                multiplier *= 0x80;
-                readOffset += BYTES_SINGLE_STEP;
-                if ((digit & 0x80) == 0) {
-                    if (remainingSize == 0) {
-                        onMessageReceived(excerpt, BYTES_FIXED_HEADER);
-                        setListenerAwaiting();
-                    }
-                    else setListenerFetchingFullPacket();
-                }
-                break;
-            case RS_FETCHING_FULL_PACKET:
-                if (readSize < readStepSize) {
-                    readStepSize -= readSize;
-                    readOffset += readSize;
-                }
-                else {
-                    if (readSize == readStepSize) {
-                        onMessageReceived(excerpt, readOffset + readStepSize);
-                    }
-                    setListenerAwaiting();
-                }
-                break;
-            case RS_HANDLING_OVERFLOW:
-                if (readSize < readStepSize) {
-                    readStepSize -= readSize;
-                    readOffset += readSize;
-                }
-                else {
-                    if (readSize == readStepSize) {
-                        handleOverflowedPublish(excerpt);
-                    }
-                    setListenerAwaiting();
-                }
-                break;
+    private final uMQTTFrameDecoder.Handler mFrameHandler = new uMQTTFrameDecoder.Handler() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int size) {
+            int type = (buffer[offset] >> 4) & 0xf;
+            mController.getMetrics().frameReceived(type, size);
+            uMQTTInterceptors interceptors = mController.getInterceptors();
+            if (interceptors.isActive())
+                interceptors.onPacket(uMQTTInterceptor.EVENT_DECODED, type,
+                        packetIdOf(type, buffer, offset, size), size);
+            onMessageReceived(buffer, offset, size);
         }
-    }
 
-    private void onMessageReceived(byte[] message, int size) {
-        @uMQTTFrame.MQPacketType int type = (message[0] >> 4) & 0xf;
+        @Override
+        public void onOverflowedPublish(byte qosLevel, short packetId) {
+            // The broker will stop sending this publish, we never deliver it
+            if (qosLevel == 0b01) mController.sendPuback(packetId);
+            else mController.getOutputService().handlePublishTransaction(
+                    uMQTTFrame.MQ_PUBREC, packetId);
+        }
+    };
+
+    private void onMessageReceived(byte[] message, int offset, int size) {
+        @uMQTTFrame.MQPacketType int type = (message[offset] >> 4) & 0xf;
+        if (mWaitingConnack && type != uMQTTFrame.MQ_CONNACK) {
+            return;
+        }
+        else if (mWaitingConnack) mWaitingConnack = false;
+
         switch (type) {
             case uMQTTFrame.MQ_CONNACK:
-                handleConnack(message[3]);
+                handleConnack(message[offset + 3]);
                 break;
             case uMQTTFrame.MQ_SUBACK:
-                handleSuback(message, size);
+                handleSuback(message, offset, size);
+                onAckReceived(type, message, offset, size);
                 break;
             case uMQTTFrame.MQ_UNSUBACK:
-                handleUnsuback(message[2], message[3]);
+                handleUnsuback(message[offset + 2], message[offset + 3]);
+                onAckReceived(type, message, offset, size);
             case uMQTTFrame.MQ_PINGRESP:
                 handlePingresp();
                 break;
             case uMQTTFrame.MQ_PUBACK:
             case uMQTTFrame.MQ_PUBREC:
             case uMQTTFrame.MQ_PUBCOMP:
-                handleOutboundQoS(message);
+                handleOutboundQoS(message, offset);
+                onAckReceived(type, message, offset, size);
                 break;
             case uMQTTFrame.MQ_PUBLISH:
             case uMQTTFrame.MQ_PUBREL:
-                handleInboundQoS(type, message);
+                handleInboundQoS(type, message, offset, size);
                 break;
             default:
                 Timber.wtf("Unexpected packet type (#%d) received", type);
@@ -225,31 +172,68 @@ public class uMQTTInputService {
         }
     }
 
+    private void onAckReceived(@uMQTTFrame.MQPacketType int type, byte[] message, int offset,
+                               int size) {
+        uMQTTInterceptors interceptors = mController.getInterceptors();
+        if (interceptors.isActive())
+            interceptors.onPacket(uMQTTInterceptor.EVENT_ACK_RECEIVED, type,
+                    uMQTTFrame.fetchBytes(message[offset + 2], message[offset + 3]), size);
+    }
+
+    /**
+     * @return The packet id in a received frame, 0 if its type doesn't have one.
+     */
+    private static short packetIdOf(int type, byte[] message, int offset, int size) {
+        switch (type) {
+            case uMQTTFrame.MQ_PUBLISH:
+                if (((message[offset] >> 1) & 0b11) == 0) return 0;
+                int i = offset + 1;
+                while ((message[i] & 0x80) != 0) ++i;
+                i += 1;
+                i += (uMQTTFrame.fetchBytes(message[i], message[i + 1]) & 0xffff) + 2;
+                return uMQTTFrame.fetchBytes(message[i], message[i + 1]);
+            case uMQTTFrame.MQ_PUBACK:
+            case uMQTTFrame.MQ_PUBREC:
+            case uMQTTFrame.MQ_PUBREL:
+            case uMQTTFrame.MQ_PUBCOMP:
+            case uMQTTFrame.MQ_SUBACK:
+            case uMQTTFrame.MQ_UNSUBACK:
+                return size >= 4
+                        ? uMQTTFrame.fetchBytes(message[offset + 2], message[offset + 3]) : 0;
+            default:
+                return 0;
+        }
+    }
+
     private void handleUnsuback(byte msb, byte lsb) {
         short packetId = uMQTTFrame.fetchBytes(msb, lsb);
-        uMQTT.getInstance().removeSubscriptions(packetId);
+        mController.removeSubscriptions(packetId);
     }
 
-    private void handleOutboundQoS(byte[] message) {
-        short packetId = uMQTTFrame.fetchBytes(message[2], message[3]);
-        uMQTT.getInstance().advanceOutboundTransaction(packetId);
+    private void handleOutboundQoS(byte[] message, int offset) {
+        short packetId = uMQTTFrame.fetchBytes(message[offset + 2], message[offset + 3]);
+        mController.advanceOutboundTransaction(packetId);
     }
 
-    private void handleInboundQoS(int type, byte[] message) {
+    private void handleInboundQoS(int type, byte[] message, int offset, int size) {
         if (type == uMQTTFrame.MQ_PUBLISH) {
-            uMQTTPublish publish = new uMQTTPublish(message);
+            // Only the topic is decoded before deciding whether anyone wants this
+            uMQTTMessage inbound = new uMQTTMessage(message, offset, size);
+            if (!mController.hasSubscription(inbound.getTopic())) {
+                mController.dropInboundPublish(inbound);
+                return;
+            }
 
-            uMQTT.getInstance().advanceInboundTransaction(
-                    publish
-            );
+            mController.advanceInboundTransaction(inbound);
         }
         else {
-            short packetId = uMQTTFrame.fetchBytes(message[2], message[3]);
-            uMQTT.getInstance().advanceInboundTransaction(packetId);
+            short packetId = uMQTTFrame.fetchBytes(message[offset + 2], message[offset + 3]);
+            mController.advanceInboundTransaction(packetId);
         }
     }
 
     private void handlePingresp() {
+        // The read it came in already told the keep-alive the connection is fine
         Timber.v("Received PINGRESP");
     }
 
@@ -257,22 +241,22 @@ public class uMQTTInputService {
         switch (returnCode) {
             case 0:
                 Timber.d("Connection accepted by broker");
-                uMQTT.getInstance().connectionEstablished();
+                mController.connectionEstablished();
                 break;
             case 1:
-                Timber.d("Connection refused: unacceptable protocol version");
+                connectionRefused("unacceptable protocol version");
                 break;
             case 2:
-                Timber.d("Connection refused: identifier rejected");
+                connectionRefused("identifier rejected");
                 break;
             case 3:
-                Timber.d("Connection refused: server unavailable");
+                connectionRefused("server unavailable");
                 break;
             case 4:
-                Timber.d("Connection refused: bad username or password");
+                connectionRefused("bad username or password");
                 break;
             case 5:
-                Timber.d("Connection refused: unauthorized");
+                connectionRefused("unauthorized");
                 break;
             default:
                 Timber.w("Unsupported connection response. Ignoring");
@@ -281,47 +265,18 @@ public class uMQTTInputService {
         }
     }
 
-    private void handleSuback(byte[] message, int size) {
-        short packetId = uMQTTFrame.fetchBytes(message[2], message[3]);
-
-        uMQTT.getInstance()
-                .setResponseToAwaitingSubscriptions(
-                        packetId,
-                        Arrays.copyOfRange(message, 4, size));
+    private void connectionRefused(String reason) {
+        Timber.d("Connection refused: %s", reason);
+        // The broker closes its end, we retry later
+        mController.connectionLost(mTransport,
+                new IOException("Connection refused: " + reason));
     }
 
-    private void handleOverflowedPublish(byte[] message) {
-        // This is intended, just for us to skip the "remaining length" part
-        int i = 1;
-        while((message[i] & 0x80) != 0) ++i;
-
-        // i is pointing to the last digit of the "remaining length" part, skip it.
-        i += 1;
+    private void handleSuback(byte[] message, int offset, int size) {
+        short packetId = uMQTTFrame.fetchBytes(message[offset + 2], message[offset + 3]);
 
-        // Now lets see the size of the topic name and skip this much
-        i += (uMQTTFrame.fetchBytes(message[i], message[i + 1]) & 0xffff) + 2;
-
-        // Now we can see the packet id
-        short packetId = uMQTTFrame.fetchBytes(message[i], message[i + 1]);
-
-        // Finally, we send a puback, so the broker will stop sending this publish, and skip the
-        // full message
-        uMQTT.getInstance().sendPuback(packetId);
-        overflow -= BYTES_OVERFLOW_HANDLING;
-        skipMessageOverflow();
-    }
-
-    private void skipMessageOverflow() {
-        try {
-            long skipped = 0;
-            while (skipped < overflow) {
-                skipped += mInputStream.skip(overflow - skipped);
-            }
-        }
-        catch (IOException ex) {
-            stop();
-            uMQTT.getInstance().close();
-            uMQTT.getInstance().open();
-        }
+        mController.setResponseToAwaitingSubscriptions(
+                packetId,
+                Arrays.copyOfRange(message, offset + 4, offset + size));
     }
 }
@@ -0,0 +1,65 @@
+package re.usto.umqtt;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Told about every step of a packet's life in a client, for tracing, sampling or alarms.
+ * Calls come from the thread where the step happens (reading, writing, dispatching or
+ * publishing), so they should be quick and must not block. Timestamps are
+ * {@link System#nanoTime()}.
+ *
+ * @author gabriel
+ * @see uMQTT#addInterceptor(uMQTTInterceptor)
+ */
+
+public interface uMQTTInterceptor {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({EVENT_ENCODED, EVENT_WRITTEN, EVENT_DECODED, EVENT_ACK_RECEIVED,
+            EVENT_DISPATCHED})
+    @interface PacketEvent { }
+
+    /**
+     * An outbound frame was encoded for writing.
+     */
+    int EVENT_ENCODED = 0;
+
+    /**
+     * An outbound frame was written to the transport.
+     */
+    int EVENT_WRITTEN = 1;
+
+    /**
+     * An inbound frame was cut out of what was read, before anything is done with it.
+     */
+    int EVENT_DECODED = 2;
+
+    /**
+     * A PUBACK, PUBREC, PUBCOMP, SUBACK or UNSUBACK was received and handled.
+     */
+    int EVENT_ACK_RECEIVED = 3;
+
+    /**
+     * A received PUBLISH is about to be handed to its subscriptions' callbacks.
+     */
+    int EVENT_DISPATCHED = 4;
+
+    /**
+     * @param type packet type, see {@link uMQTTFrame.MQPacketType}.
+     * @param packetId 0 for packets that don't have one.
+     * @param size whole frame, fixed header included.
+     */
+    void onPacket(@PacketEvent int event, @uMQTTFrame.MQPacketType int type, short packetId,
+                  int size, long timestamp);
+
+    /**
+     * An outbound publish moved on in its QoS flow.
+     * @param state see {@link uMQTTPublish.MQPubStatus}.
+     * @param size whole PUBLISH frame, fixed header included.
+     */
+    void onPublishStateChanged(short packetId, @uMQTTPublish.MQPubStatus int state, int size,
+                               long timestamp);
+}
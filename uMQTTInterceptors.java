@@ -0,0 +1,73 @@
+package re.usto.umqtt;
+
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * The interceptors registered on a client. The list is copied on change, so firing only
+ * reads a volatile array and allocates nothing. Callers check {@link #isActive()} first, and
+ * skip working out what they'd report when nobody listens.
+ *
+ * @author gabriel
+ */
+
+class uMQTTInterceptors {
+
+    private static final uMQTTInterceptor[] NONE = new uMQTTInterceptor[0];
+
+    private volatile uMQTTInterceptor[] mInterceptors = NONE;
+
+    synchronized void add(uMQTTInterceptor interceptor) {
+        if (interceptor == null) throw new IllegalArgumentException("Interceptor is null");
+        uMQTTInterceptor[] interceptors = Arrays.copyOf(mInterceptors, mInterceptors.length + 1);
+        interceptors[interceptors.length - 1] = interceptor;
+        mInterceptors = interceptors;
+    }
+
+    synchronized void remove(uMQTTInterceptor interceptor) {
+        uMQTTInterceptor[] interceptors = mInterceptors;
+        for (int i = 0; i < interceptors.length; ++i) {
+            if (interceptors[i] != interceptor) continue;
+            uMQTTInterceptor[] remaining = new uMQTTInterceptor[interceptors.length - 1];
+            System.arraycopy(interceptors, 0, remaining, 0, i);
+            System.arraycopy(interceptors, i + 1, remaining, i, remaining.length - i);
+            mInterceptors = remaining.length > 0 ? remaining : NONE;
+            return;
+        }
+    }
+
+    boolean isActive() {
+        return mInterceptors.length > 0;
+    }
+
+    void onPacket(@uMQTTInterceptor.PacketEvent int event, @uMQTTFrame.MQPacketType int type,
+                  short packetId, int size) {
+        uMQTTInterceptor[] interceptors = mInterceptors;
+        if (interceptors.length == 0) return;
+        long timestamp = System.nanoTime();
+        for (uMQTTInterceptor interceptor : interceptors) {
+            try {
+                interceptor.onPacket(event, type, packetId, size, timestamp);
+            }
+            catch (RuntimeException e) {
+                // Tracing shouldn't bring the connection down
+                Timber.e(e, "Uncaught exception in interceptor");
+            }
+        }
+    }
+
+    void onPublishStateChanged(short packetId, @uMQTTPublish.MQPubStatus int state, int size) {
+        uMQTTInterceptor[] interceptors = mInterceptors;
+        if (interceptors.length == 0) return;
+        long timestamp = System.nanoTime();
+        for (uMQTTInterceptor interceptor : interceptors) {
+            try {
+                interceptor.onPublishStateChanged(packetId, state, size, timestamp);
+            }
+            catch (RuntimeException e) {
+                Timber.e(e, "Uncaught exception in interceptor");
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package re.usto.umqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+import timber.log.Timber;
+
+/**
+ * Append-only journal of outbound QoS 1/2 publishes not yet acknowledged, so they survive
+ * the process being killed. Records go to memory-mapped segment files: appending is a copy
+ * into the mapping, and the OS writes it out even if we die right after.
+ *
+ * <p> Each publish is journaled as its encoded PUBLISH frame, which already holds packet id,
+ * topic, QoS and payload. Acks append a tombstone, and a PUBREC appends a marker so QoS 2
+ * publishes can resume with PUBREL. A tombstone or marker only means something while the
+ * segments before it are there, so segments are deleted oldest first, once nothing live is
+ * left in them. When there are too many, live records of the oldest are copied forward so it
+ * can go.
+ *
+ * <p> A record is [type][packet id][length][frame]. The type byte is written last, so a
+ * record cut short by a crash reads as the end of the segment.
+ *
+ * @author gabriel
+ */
+
+class uMQTTJournal {
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_PUBLISH = 1;
+    private static final byte RECORD_RELEASED = 2;
+    private static final byte RECORD_ACKNOWLEDGED = 3;
+    private static final int RECORD_HEADER_SIZE = 1 + 2 + 4;
+
+    // Size = 4MB
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final class Segment {
+        final long sequence;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int live = 0;
+        int liveBytes = 0;
+
+        Segment(long sequence, File file, int size) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < size) raf.setLength(size);
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        void delete() {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                Timber.w(e, "Could not close journal segment %s", file.getName());
+            }
+            if (!file.delete()) Timber.w("Could not delete journal segment %s", file.getName());
+        }
+    }
+
+    /**
+     * Where the live publish record of a packet id sits.
+     */
+    private static final class Location {
+        Segment segment;
+        int offset;
+        int size;
+        boolean released;
+    }
+
+    /**
+     * Unacknowledged publish found in the journal when it was opened.
+     */
+    static final class Restored {
+        final short packetId;
+        final byte[] packet;
+        boolean released;
+
+        Restored(short packetId, byte[] packet) {
+            this.packetId = packetId;
+            this.packet = packet;
+        }
+    }
+
+    private final File mDirectory;
+    // Not a monitor: rolling and deleting segments block on the file system, and callers may
+    // be virtual threads
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+    private final uMQTTShortMap<Location> mLocations = new uMQTTShortMap<>();
+    private final LinkedHashMap<Short, Restored> mRestored = new LinkedHashMap<>();
+    private Segment mCurrent;
+
+    uMQTTJournal(File directory) throws IOException {
+        mDirectory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create journal directory " + directory);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+                long sequence = Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(sequence, file, 0);
+                mSegments.add(segment);
+                replay(segment);
+            }
+        }
+
+        if (mSegments.isEmpty()) roll(SEGMENT_SIZE);
+        else mCurrent = mSegments.get(mSegments.size() - 1);
+        deleteDeadSegments();
+    }
+
+    /**
+     * @return Publishes still unacknowledged when the journal was opened, in the order they
+     * were first journaled.
+     */
+    Collection<Restored> getRestored() {
+        mLock.lock();
+        try {
+            return new ArrayList<>(mRestored.values());
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private void replay(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int offset = buffer.position();
+            byte type = buffer.get();
+            if (type == RECORD_END) {
+                buffer.position(offset);
+                break;
+            }
+            short packetId = buffer.getShort();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                // Damaged tail, whatever follows is unusable
+                buffer.position(offset);
+                break;
+            }
+
+            switch (type) {
+                case RECORD_PUBLISH:
+                    byte[] packet = new byte[length];
+                    buffer.get(packet);
+                    forget(packetId);
+                    track(packetId, segment, offset, RECORD_HEADER_SIZE + length);
+                    mRestored.put(packetId, new Restored(packetId, packet));
+                    break;
+                case RECORD_RELEASED:
+                    Location location = mLocations.get(packetId);
+                    if (location != null) location.released = true;
+                    Restored restored = mRestored.get(packetId);
+                    if (restored != null) restored.released = true;
+                    break;
+                case RECORD_ACKNOWLEDGED:
+                    forget(packetId);
+                    mRestored.remove(packetId);
+                    break;
+                default:
+                    buffer.position(offset);
+                    return;
+            }
+        }
+    }
+
+    private void track(short packetId, Segment segment, int offset, int size) {
+        Location location = new Location();
+        location.segment = segment;
+        location.offset = offset;
+        location.size = size;
+        mLocations.put(packetId, location);
+        segment.live++;
+        segment.liveBytes += size;
+    }
+
+    private Location forget(short packetId) {
+        Location location = mLocations.remove(packetId);
+        if (location != null) {
+            location.segment.live--;
+            location.segment.liveBytes -= location.size;
+        }
+        return location;
+    }
+
+    void append(short packetId, byte[] packet) throws IOException {
+        mLock.lock();
+        try {
+            forget(packetId);
+            int offset = write(RECORD_PUBLISH, packetId, packet, 0, packet.length);
+            track(packetId, mCurrent, offset, RECORD_HEADER_SIZE + packet.length);
+            if (mSegments.size() > MAX_SEGMENTS) compact();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Records that a QoS 2 publish got its PUBREC, so after a restart we send PUBREL for it
+     * instead of the publish.
+     */
+    void markReleased(short packetId) throws IOException {
+        mLock.lock();
+        try {
+            Location location = mLocations.get(packetId);
+            if (location == null) return;
+            location.released = true;
+            write(RECORD_RELEASED, packetId, null, 0, 0);
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    void remove(short packetId) throws IOException {
+        mLock.lock();
+        try {
+            Location location = forget(packetId);
+            if (location == null) return;
+            write(RECORD_ACKNOWLEDGED, packetId, null, 0, 0);
+            if (location.segment.live == 0) deleteDeadSegments();
+            if (mSegments.size() > MAX_SEGMENTS) compact();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return Offset of the record in the current segment.
+     */
+    private int write(byte type, short packetId, byte[] data, int offset, int length)
+            throws IOException {
+        int size = RECORD_HEADER_SIZE + length;
+        // Room is always left for the end marker
+        if (mCurrent.buffer.remaining() < size + 1) roll(Math.max(SEGMENT_SIZE, size + 1));
+
+        MappedByteBuffer buffer = mCurrent.buffer;
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putShort(packetId);
+        buffer.putInt(length);
+        if (data != null) buffer.put(data, offset, length);
+        buffer.put(start, type);
+        return start;
+    }
+
+    private void roll(int size) throws IOException {
+        long sequence = mCurrent != null ? mCurrent.sequence + 1 : 0;
+        File file = new File(mDirectory,
+                String.format(Locale.US, "%020d%s", sequence, SEGMENT_SUFFIX));
+        Segment segment = new Segment(sequence, file, size);
+        mSegments.add(segment);
+        mCurrent = segment;
+        deleteDeadSegments();
+    }
+
+    /**
+     * Deletes segments with nothing live from the oldest on, up to the first one still
+     * needed. One further on may hold the tombstones cancelling publishes of an older one
+     * still kept, so it has to wait for that one to go.
+     */
+    private void deleteDeadSegments() {
+        while (!mSegments.isEmpty()) {
+            Segment oldest = mSegments.get(0);
+            if (oldest == mCurrent || oldest.live != 0) return;
+            mSegments.remove(0);
+            oldest.delete();
+        }
+    }
+
+    /**
+     * Once there are too many segments, copies the live records of the oldest forward so it
+     * can be deleted, along with whatever dead ones follow it. The limit grows with the live
+     * data, to twice as much as it takes: past that, records would be copied round and round.
+     */
+    private void compact() throws IOException {
+        for (int passes = mSegments.size(); passes > 0; --passes) {
+            long liveBytes = 0;
+            for (Segment segment : mSegments) liveBytes += segment.liveBytes;
+            long limit = Math.max(MAX_SEGMENTS, 2 * liveBytes / SEGMENT_SIZE + 2);
+            Segment oldest = mSegments.get(0);
+            if (mSegments.size() <= limit || oldest == mCurrent) return;
+
+            moveForward(oldest);
+            deleteDeadSegments();
+        }
+    }
+
+    private void moveForward(Segment segment) throws IOException {
+        List<Short> moved = new ArrayList<>();
+        ByteBuffer source = segment.buffer.duplicate();
+        for (int offset = 0; offset + RECORD_HEADER_SIZE <= source.capacity(); ) {
+            byte type = source.get(offset);
+            if (type == RECORD_END) break;
+            short packetId = source.getShort(offset + 1);
+            int length = source.getInt(offset + 3);
+            if (type == RECORD_PUBLISH) {
+                Location location = mLocations.get(packetId);
+                if (location != null && location.segment == segment
+                        && location.offset == offset) {
+                    moved.add(packetId);
+                }
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        for (short packetId : moved) {
+            Location location = forget(packetId);
+            byte[] packet = new byte[location.size - RECORD_HEADER_SIZE];
+            source.position(location.offset + RECORD_HEADER_SIZE);
+            source.get(packet);
+            int offset = write(RECORD_PUBLISH, packetId, packet, 0, packet.length);
+            track(packetId, mCurrent, offset, location.size);
+            if (location.released) {
+                mLocations.get(packetId).released = true;
+                write(RECORD_RELEASED, packetId, null, 0, 0);
+            }
+        }
+    }
+
+    void close() {
+        mLock.lock();
+        try {
+            for (Segment segment : mSegments) {
+                segment.buffer.force();
+                try {
+                    segment.channel.close();
+                }
+                catch (IOException e) {
+                    Timber.w(e, "Could not close journal segment %s", segment.file.getName());
+                }
+            }
+            mSegments.clear();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Keeps a connection alive from inside the process. A PINGREQ goes out only once nothing was
+ * written for the keep-alive period, so a busy connection never pings. If nothing at all is
+ * read within the ping timeout after that, the connection is taken as dead and reopened.
+ *
+ * <p> While reading is paused for backpressure, the answer may be waiting unread on the
+ * socket, so the timeout is put off until reading resumes.
+ *
+ * <p> Checks run on the shared timer thread, each scheduled for its next deadline rather
+ * than polled.
+ *
+ * @author gabriel
+ */
+
+class uMQTTKeepAlive {
+
+    private final uMQTT mController;
+    // Transport of the connection being kept alive
+    private volatile uMQTTTransport mTransport;
+    private volatile long mLastWrite;
+    private volatile long mLastRead;
+    // When the unanswered PINGREQ went out, 0 if none is
+    private volatile long mPingSentAt = 0;
+    // Guarded by this. Checks scheduled before the last start or stop see another generation
+    private ScheduledFuture<?> mCheck;
+    private int mGeneration = 0;
+
+    private final class Check implements Runnable {
+
+        private final int mScheduledIn;
+
+        Check(int generation) {
+            mScheduledIn = generation;
+        }
+
+        @Override
+        public void run() {
+            synchronized (uMQTTKeepAlive.this) {
+                if (mScheduledIn != mGeneration) return;
+                if (check()) return;
+                cancel();
+            }
+            int timeout = mController.getConfiguration().getPingTimeout();
+            Timber.w("No answer to PINGREQ in %d s, reopening connection", timeout);
+            mController.connectionLost(mTransport,
+                    new IOException("No answer to PINGREQ in " + timeout + " s"));
+        }
+    }
+
+    uMQTTKeepAlive(uMQTT controller) {
+        mController = controller;
+    }
+
+    /**
+     * Starts keeping the connection alive, once the broker accepted it.
+     */
+    synchronized void start() {
+        cancel();
+        mTransport = mController.getTransport();
+        if (mController.getConfiguration().getKeepAlive() == 0) return;
+        long now = System.nanoTime();
+        mLastWrite = now;
+        mLastRead = now;
+        mPingSentAt = 0;
+        schedule(TimeUnit.SECONDS.toNanos(mController.getConfiguration().getKeepAlive()));
+    }
+
+    synchronized void stop() {
+        cancel();
+    }
+
+    void onWrite() {
+        mLastWrite = System.nanoTime();
+    }
+
+    void onRead() {
+        mLastRead = System.nanoTime();
+    }
+
+    private void cancel() {
+        ++mGeneration;
+        if (mCheck != null) mCheck.cancel(false);
+        mCheck = null;
+    }
+
+    private void schedule(long delay) {
+        mCheck = uMQTTThreads.TIMER.schedule(new Check(mGeneration), delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends PINGREQ or schedules the next check, as due. Called holding the lock.
+     * @return false if the connection is dead.
+     */
+    private boolean check() {
+        uMQTTConfiguration configuration = mController.getConfiguration();
+        long keepAlive = TimeUnit.SECONDS.toNanos(configuration.getKeepAlive());
+        long timeout = TimeUnit.SECONDS.toNanos(configuration.getPingTimeout());
+        long now = System.nanoTime();
+
+        long pingSentAt = mPingSentAt;
+        if (pingSentAt != 0) {
+            if (mLastRead - pingSentAt >= 0) mPingSentAt = 0;
+            else if (now - pingSentAt < timeout) {
+                schedule(pingSentAt + timeout - now);
+                return true;
+            }
+            else if (mController.isReadingPaused()) {
+                schedule(timeout);
+                return true;
+            }
+            else return false;
+        }
+
+        long idle = now - mLastWrite;
+        if (idle < keepAlive) {
+            schedule(keepAlive - idle);
+            return true;
+        }
+        mPingSentAt = now;
+        mController.sendPing();
+        schedule(timeout);
+        return true;
+    }
+}
@@ -0,0 +1,144 @@
+package re.usto.umqtt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Lightweight view of an inbound PUBLISH frame, laid over the buffer it was received in.
+ * Only the fixed header and topic length are looked at when the view is built; the topic
+ * and payload are decoded when first asked for.
+ *
+ * <p> The underlying buffer is reused by the input service once the subscription callback
+ * returns, so a message must not be kept past that point. Use {@link #copy()} to hold on
+ * to it.
+ *
+ * @author gabriel
+ */
+
+public class uMQTTMessage {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+    private int offset;
+    private final byte fixedHeader;
+    private final int topicOffset;
+    private final int topicLength;
+    private final int payloadOffset;
+    private final int payloadLength;
+    private final short packetId;
+
+    private String topic;
+    private String message;
+    // Whether the buffer is ours alone, as it is for copies
+    private final boolean owned;
+
+    /**
+     * @param buffer the buffer holding the frame.
+     * @param offset where the frame starts, fixed header included.
+     * @param size full size of the frame.
+     */
+    uMQTTMessage(byte[] buffer, int offset, int size) {
+        if (((buffer[offset] >> 4) & 0xf) != uMQTTFrame.MQ_PUBLISH)
+            throw new IllegalStateException("Not a PUBLISH packet");
+
+        this.buffer = buffer;
+        this.offset = offset;
+        this.owned = false;
+        this.fixedHeader = buffer[offset];
+
+        // Skip the "remaining length" digits, we already know the frame size
+        int i = offset + 1;
+        while ((buffer[i] & 0x80) != 0) ++i;
+        ++i;
+
+        this.topicLength = uMQTTFrame.fetchBytes(buffer[i], buffer[i + 1]) & 0xffff;
+        this.topicOffset = i + 2 - offset;
+        i += 2 + topicLength;
+
+        if (getQosLevel() != 0) {
+            this.packetId = uMQTTFrame.fetchBytes(buffer[i], buffer[i + 1]);
+            i += 2;
+        }
+        else this.packetId = 0;
+
+        this.payloadOffset = i - offset;
+        this.payloadLength = size - payloadOffset;
+    }
+
+    private uMQTTMessage(uMQTTMessage other, byte[] buffer) {
+        this.buffer = buffer;
+        this.offset = 0;
+        this.owned = true;
+        this.fixedHeader = other.fixedHeader;
+        this.topicOffset = other.topicOffset;
+        this.topicLength = other.topicLength;
+        this.payloadOffset = other.payloadOffset;
+        this.payloadLength = other.payloadLength;
+        this.packetId = other.packetId;
+        this.topic = other.topic;
+        this.message = other.message;
+    }
+
+    public String getTopic() {
+        if (topic == null)
+            topic = uMQTTTopicCache.getDefault().get(buffer, offset + topicOffset, topicLength);
+        return topic;
+    }
+
+    /**
+     * @return Read-only view of the payload bytes. Nothing is copied.
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(buffer, offset + payloadOffset, payloadLength)
+                .slice().asReadOnlyBuffer();
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return The payload decoded as an UTF-8 string.
+     */
+    public String getMessage() {
+        if (message == null)
+            message = new String(buffer, offset + payloadOffset, payloadLength, UTF_8);
+        return message;
+    }
+
+    public byte getQosLevel() {
+        return (byte)((fixedHeader >> 1) & 0b11);
+    }
+
+    public boolean isDuplicate() {
+        return (fixedHeader & (1 << 3)) != 0;
+    }
+
+    public boolean isRetained() {
+        return (fixedHeader & 1) != 0;
+    }
+
+    /**
+     * @return Size of the whole frame, fixed header included.
+     */
+    int getSize() {
+        return payloadOffset + payloadLength;
+    }
+
+    short getPacketId() {
+        return packetId;
+    }
+
+    /**
+     * @return A message backed by its own copy of the frame, safe to keep after the
+     * subscription callback returns.
+     */
+    public uMQTTMessage copy() {
+        // Nothing can change under a copy, it's as good as a new one
+        if (owned) return this;
+        byte[] frame = new byte[payloadOffset + payloadLength];
+        System.arraycopy(buffer, offset, frame, 0, frame.length);
+        return new uMQTTMessage(this, frame);
+    }
+}
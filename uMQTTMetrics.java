@@ -0,0 +1,168 @@
+package re.usto.umqtt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What a client has been doing since it was created: frames and bytes each way by packet
+ * type, what is in flight, acknowledgement latencies and connection history. Recording is
+ * lock free and allocation free, from whichever thread sees the event, so this is always on.
+ * Values are read as they are when asked.
+ *
+ * <p> Latencies are in nanoseconds, from the frame being handed to the writer to its
+ * acknowledgement being read.
+ *
+ * @author gabriel
+ * @see uMQTT#getMetrics()
+ */
+
+public class uMQTTMetrics {
+
+    private static final int TYPES = 16;
+    private static final int
+            FRAMES_RECEIVED = 0,
+            BYTES_RECEIVED = FRAMES_RECEIVED + TYPES,
+            FRAMES_SENT = BYTES_RECEIVED + TYPES,
+            BYTES_SENT = FRAMES_SENT + TYPES,
+            DECODE_ERRORS = BYTES_SENT + TYPES,
+            OVERFLOWED_FRAMES = DECODE_ERRORS + 1,
+            CONNECTIONS = OVERFLOWED_FRAMES + 1,
+            COUNTERS = CONNECTIONS + 1;
+
+    private static final long NOT_CONNECTED = Long.MIN_VALUE;
+
+    private final uMQTT mController;
+    private final uMQTTCounters mCounters = new uMQTTCounters(COUNTERS);
+    private final uMQTTHistogram mPubackLatency = new uMQTTHistogram();
+    private final uMQTTHistogram mPubcompLatency = new uMQTTHistogram();
+    private final uMQTTHistogram mSubackLatency = new uMQTTHistogram();
+    private final AtomicLong mConnectedTime = new AtomicLong(0);
+    private final AtomicLong mConnectedSince = new AtomicLong(NOT_CONNECTED);
+
+    uMQTTMetrics(uMQTT controller) {
+        mController = controller;
+    }
+
+    void frameReceived(@uMQTTFrame.MQPacketType int type, int size) {
+        mCounters.increment(FRAMES_RECEIVED + type);
+        mCounters.add(BYTES_RECEIVED + type, size);
+    }
+
+    void frameSent(@uMQTTFrame.MQPacketType int type, int size) {
+        mCounters.increment(FRAMES_SENT + type);
+        mCounters.add(BYTES_SENT + type, size);
+    }
+
+    void decodeError() {
+        mCounters.increment(DECODE_ERRORS);
+    }
+
+    void frameOverflowed() {
+        mCounters.increment(OVERFLOWED_FRAMES);
+    }
+
+    void publishCompleted(byte qosLevel, long latency) {
+        (qosLevel == 0b01 ? mPubackLatency : mPubcompLatency).record(latency);
+    }
+
+    void subscribeAcknowledged(long latency) {
+        mSubackLatency.record(latency);
+    }
+
+    void connected() {
+        mCounters.increment(CONNECTIONS);
+        mConnectedSince.set(System.nanoTime());
+    }
+
+    void disconnected() {
+        long since = mConnectedSince.getAndSet(NOT_CONNECTED);
+        if (since != NOT_CONNECTED) mConnectedTime.addAndGet(System.nanoTime() - since);
+    }
+
+    public long getFramesReceived(@uMQTTFrame.MQPacketType int type) {
+        return mCounters.sum(FRAMES_RECEIVED + type);
+    }
+
+    /**
+     * @return Bytes of whole frames received, fixed headers included.
+     */
+    public long getBytesReceived(@uMQTTFrame.MQPacketType int type) {
+        return mCounters.sum(BYTES_RECEIVED + type);
+    }
+
+    public long getFramesSent(@uMQTTFrame.MQPacketType int type) {
+        return mCounters.sum(FRAMES_SENT + type);
+    }
+
+    /**
+     * @return Bytes of whole frames written to the transport, fixed headers included.
+     */
+    public long getBytesSent(@uMQTTFrame.MQPacketType int type) {
+        return mCounters.sum(BYTES_SENT + type);
+    }
+
+    /**
+     * @return QoS 1/2 publishes sent and not acknowledged yet.
+     */
+    public int getInFlightOutbound() {
+        return mController.getInFlightPublishCount();
+    }
+
+    /**
+     * @return QoS 2 publishes received whose PUBREL hasn't come yet.
+     */
+    public int getInFlightInbound() {
+        return mController.getAwaitingReleaseCount();
+    }
+
+    /**
+     * @return PUBLISH to PUBACK latency of QoS 1 publishes.
+     */
+    public uMQTTHistogram getPubackLatency() {
+        return mPubackLatency;
+    }
+
+    /**
+     * @return PUBLISH to PUBCOMP latency of QoS 2 publishes.
+     */
+    public uMQTTHistogram getPubcompLatency() {
+        return mPubcompLatency;
+    }
+
+    public uMQTTHistogram getSubackLatency() {
+        return mSubackLatency;
+    }
+
+    /**
+     * @return Times a connection was accepted by the broker after the first one.
+     */
+    public long getReconnectCount() {
+        return Math.max(0, mCounters.sum(CONNECTIONS) - 1);
+    }
+
+    /**
+     * @return How long the client has been connected to the broker, all connections
+     * together, the current one included.
+     */
+    public long getConnectedTime(TimeUnit unit) {
+        long connected = mConnectedTime.get();
+        long since = mConnectedSince.get();
+        if (since != NOT_CONNECTED) connected += System.nanoTime() - since;
+        return unit.convert(connected, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Connections dropped because the broker sent something that isn't a frame.
+     */
+    public long getDecodeErrors() {
+        return mCounters.sum(DECODE_ERRORS);
+    }
+
+    /**
+     * @return Received frames skipped for being over the maximum frame size.
+     * @see uMQTTConfiguration.Builder#setMaxFrameSize(int)
+     */
+    public long getOverflowedFrames() {
+        return mCounters.sum(OVERFLOWED_FRAMES);
+    }
+}
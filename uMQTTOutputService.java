@@ -1,269 +1,321 @@
 package re.usto.umqtt;
 
-import android.app.IntentService;
-import android.content.Intent;
-import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import timber.log.Timber;
 
 /**
+ * Outbound side of the connection. Any thread may queue frames here; a single writer thread
+ * drains the queue and packs every pending frame into one buffer before writing it to the
+ * socket, so a burst of frames costs a single write.
+ *
+ * <p> The writer never holds encoded frames back waiting for more: as soon as the queue is
+ * empty the buffer is flushed. Flush latency is thus bounded by the write in progress.
+ *
  * @author gabriel
  */
 
-public class uMQTTOutputService extends IntentService {
+public class uMQTTOutputService {
+
+    private final uMQTT mController;
+    private volatile Writer mWriter;
 
-    private uMQTT mController = uMQTT.getInstance();
+    // Size = 16KB. Bigger frames are written on their own
+    private static final int WRITE_BUFFER_LENGTH = 16 * 1024;
 
-    public uMQTTOutputService() {
-        super(uMQTTOutputService.class.getSimpleName());
+    uMQTTOutputService(uMQTT controller) {
+        mController = controller;
     }
 
-    @Override
-    protected void onHandleIntent(@Nullable Intent intent) {
-        if (intent == null || intent.getAction() == null) {
-            Timber.w("Invalid intent received");
-            return;
-        }
+    private uMQTT getController() {
+        return mController;
+    }
 
-        switch (intent.getAction()) {
-            case uMQTT.ACTION_CONNECT:
-                if (!intent.hasExtra(uMQTT.EXTRA_CLIENT_ID))
-                    throw new UnsupportedOperationException("Missing client ID");
-                String username = intent.hasExtra(uMQTT.EXTRA_USERNAME) ?
-                        intent.getStringExtra(uMQTT.EXTRA_USERNAME) : null;
-                String password = intent.hasExtra(uMQTT.EXTRA_PASSWORD) ?
-                        intent.getStringExtra(uMQTT.EXTRA_PASSWORD) : null;
-                connect(intent.getStringExtra(uMQTT.EXTRA_CLIENT_ID),
-                        username,
-                        password);
-                break;
-            case uMQTT.ACTION_DISCONNECT:
-                disconnect();
-                break;
-            case uMQTT.ACTION_SUBSCRIBE:
-                if ((!intent.hasExtra(uMQTT.EXTRA_TOPIC)
-                        || !intent.hasExtra(uMQTT.EXTRA_TOPIC_QOS))
-                        && (!intent.hasExtra(uMQTT.EXTRA_TOPICS)
-                        || !intent.hasExtra(uMQTT.EXTRA_TOPICS_QOS)))
-                    throw new UnsupportedOperationException("Missing subscription info");
-
-                if (intent.hasExtra(uMQTT.EXTRA_TOPIC))
-                    subscribe(intent.getStringExtra(uMQTT.EXTRA_TOPIC),
-                            intent.getByteExtra(uMQTT.EXTRA_TOPIC_QOS, (byte) 0b00),
-                            false);
-                else
-                    subscribe(intent.getStringArrayExtra(uMQTT.EXTRA_TOPICS),
-                            intent.getByteArrayExtra(uMQTT.EXTRA_TOPICS_QOS),
-                            false);
-                break;
-            case uMQTT.ACTION_UNSUBSCRIBE:
-                if (!intent.hasExtra(uMQTT.EXTRA_TOPIC)
-                        && !intent.hasExtra(uMQTT.EXTRA_TOPICS))
-                    throw new UnsupportedOperationException("Missing unsubscription topics");
-
-                if (intent.hasExtra(uMQTT.EXTRA_TOPIC))
-                    subscribe(intent.getStringExtra(uMQTT.EXTRA_TOPIC), (byte) 0b01,
-                            true);
-                else {
-                    String[] topics = intent.getStringArrayExtra(uMQTT.EXTRA_TOPICS);
-                    byte[] placeHolder = new byte[topics.length];
-                    subscribe(topics, placeHolder, true);
-                }
-                break;
-            case uMQTT.ACTION_PING:
-                pingreq();
-                break;
-            case uMQTT.ACTION_PUBLISH:
-                publish(intent.getShortExtra(uMQTT.EXTRA_PACKET_ID, (short) 0));
-                break;
-            case uMQTT.ACTION_FORWARD_PUBLISH:
-                handlePublishTransaction(
-                        intent.getByteExtra(uMQTT.EXTRA_FRAME_TYPE, (byte) 0),
-                        intent.getShortExtra(uMQTT.EXTRA_PACKET_ID, (short) 0)
-                );
+    /**
+     * Frame waiting in the queue, and what to do once it's written.
+     */
+    private static final class Outbound {
+        final uMQTTFrame frame;
+        final uMQTTPublish publish;
+        final boolean closeAfter;
+
+        Outbound(uMQTTFrame frame, uMQTTPublish publish, boolean closeAfter) {
+            this.frame = frame;
+            this.publish = publish;
+            this.closeAfter = closeAfter;
         }
     }
 
-    private void publish(short packetId) {
-        //if (packetId == 0) {
-        //    throw new IllegalArgumentException("Problem handling packet ID");
-        //}
+    private class Writer implements Runnable {
 
-        try {
-            uMQTTPublish publish = mController.getPublish(packetId);
-            if(publish != null) {
-                byte[] packet = publish.getPacket();
-                mController.getSocket().getOutputStream().write(packet);
-                if (((packet[0] >> 1) & 0b11) == 0b00)
-                    mController.sentQoS0Packet(packetId);
-                else
-                    mController.sentPacket(packetId);
-            }
+        private final uMQTTTransport mTransport;
+        private final ConcurrentLinkedQueue<Outbound> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean mParked = new AtomicBoolean(false);
+        private final ByteBuffer mBuffer;
+        // Frames in mBuffer, kept until flushed so we can tell the controller about them
+        private final ArrayList<Outbound> mBatch = new ArrayList<>();
+        private volatile boolean mRunning = true;
+        private Thread mThread;
+
+        Writer(uMQTTTransport transport) {
+            mTransport = transport;
+            mBuffer = transport.allocate(WRITE_BUFFER_LENGTH);
         }
-        catch (Throwable e) {
-            Timber.e(e, "Could not send publish to broker.");
-            mController.close();
-            mController.open();
+
+        void start() {
+            uMQTTConfiguration configuration = getController().getConfiguration();
+            mThread = uMQTTThreads.newThread(configuration.getExecutionMode(), this,
+                    "uMQTT-output-" + configuration.getClientId());
+            mThread.start();
         }
-    }
 
-    private void handlePublishTransaction(@uMQTTFrame.MQPacketType int type, short packetId) {
-        //if (type == 0 || packetId == 0)
-            //throw new IllegalArgumentException("Problem handling publish transaction");
+        void stop() {
+            mRunning = false;
+            LockSupport.unpark(mThread);
+        }
 
-        uMQTTFrame frame;
-        try {
+        void offer(Outbound outbound) {
+            mQueue.offer(outbound);
+            if (mParked.compareAndSet(true, false)) LockSupport.unpark(mThread);
+        }
+
+        @Override
+        public void run() {
             try {
-                frame = new uMQTTFrame.Builder(type).setPacketId(packetId).build();
-            } catch (BrokenMQTTFrameException e) {
-                Timber.e(e);
-                return;
+                while (mRunning) {
+                    Outbound outbound = mQueue.poll();
+                    if (outbound == null) {
+                        flush();
+                        mParked.set(true);
+                        // Something might have been queued before we flagged ourselves parked.
+                        // And flushing may block on a lock, using up the unpark of stop()
+                        if (mQueue.isEmpty() && mRunning) LockSupport.park(this);
+                        mParked.set(false);
+                        continue;
+                    }
+
+                    int size = outbound.frame.getEncodedSize();
+                    if (size > mBuffer.remaining()) flush();
+                    if (size > mBuffer.capacity()) {
+                        ByteBuffer packet = ByteBuffer.wrap(outbound.frame.getPacket());
+                        onEncoded(outbound.frame, size);
+                        mTransport.write(packet);
+                        getController().getKeepAlive().onWrite();
+                        mBatch.add(outbound);
+                        onBatchWritten();
+                    }
+                    else {
+                        outbound.frame.encode(mBuffer);
+                        onEncoded(outbound.frame, size);
+                        mBatch.add(outbound);
+                    }
+                }
+            }
+            catch (IOException e) {
+                Timber.e(e, "Could not write to broker.");
+                writerFailed(e);
+            }
+            catch (RuntimeException e) {
+                // Left alone, the connection would look fine while nothing gets written
+                Timber.e(e, "Writer failed.");
+                writerFailed(new IOException(e));
             }
-            mController.getSocket().getOutputStream().write(frame.getPacket());
         }
-        catch (Throwable e) {
-            Timber.e(e, "Could not handle publish transaction with broker");
-            mController.close();
-            mController.open();
+
+        private void writerFailed(IOException cause) {
+            if (mWriter == this) mWriter = null;
+            if (mRunning) {
+                mRunning = false;
+                getController().connectionLost(mTransport, cause);
+            }
         }
-    }
 
-    private void connect(String clientId, String username, String password) {
-        uMQTTFrame frame;
-        try {
-            try {
-                uMQTTFrame.ConnectBuilder builder = new uMQTTFrame.ConnectBuilder()
-                        .setClientId(clientId)
-                        .setWillFlag()
-                        .setWillMessage("Disconnect")
-                        .setWillTopic("a/b")
-                        .setWillQoS(0b01)
-                        .setKeepAlive((short) uMQTT.DEFAULT_KEEP_ALIVE);
-
-                if (username != null) builder.setUsername(username);
-                if (password != null) builder.setPassword(password);
-                frame = builder.build();
+        @WorkerThread
+        private void onEncoded(uMQTTFrame frame, int size) {
+            uMQTTInterceptors interceptors = getController().getInterceptors();
+            if (interceptors.isActive())
+                interceptors.onPacket(uMQTTInterceptor.EVENT_ENCODED, frame.getType(),
+                        frame.getPacketId(), size);
+        }
+
+        @WorkerThread
+        private void flush() throws IOException {
+            if (mBuffer.position() > 0) {
+                mBuffer.flip();
+                mTransport.write(mBuffer);
+                mBuffer.clear();
+                getController().getKeepAlive().onWrite();
             }
-            catch (BrokenMQTTFrameException e) {
-                Timber.wtf(e);
-                return;
+            onBatchWritten();
+        }
+
+        @WorkerThread
+        private void onBatchWritten() throws IOException {
+            boolean close = false;
+            uMQTTMetrics metrics = getController().getMetrics();
+            uMQTTInterceptors interceptors = getController().getInterceptors();
+            for (int i = 0; i < mBatch.size(); ++i) {
+                Outbound outbound = mBatch.get(i);
+                int size = outbound.frame.getEncodedSize();
+                metrics.frameSent(outbound.frame.getType(), size);
+                if (interceptors.isActive())
+                    interceptors.onPacket(uMQTTInterceptor.EVENT_WRITTEN,
+                            outbound.frame.getType(), outbound.frame.getPacketId(), size);
+                if (outbound.publish != null) {
+                    if (outbound.publish.getQosLevel() == 0b00)
+                        getController().sentQoS0Packet(outbound.publish.getPacketId());
+                    else
+                        getController().sentPacket(outbound.publish.getPacketId());
+                }
+                close |= outbound.closeAfter;
             }
+            mBatch.clear();
 
-            Timber.d("Frame: ", frame.getPacket().toString());
-            mController.getSocket().getOutputStream().write(frame.getPacket());
-            Timber.v("Sent connect packet to broker.");
+            if (close) {
+                mRunning = false;
+                mTransport.close();
+            }
         }
-        catch (Throwable e) {
-            Timber.e(e, "Failed to send packet to broker.");
-            mController.close();
-            mController.open();
+    }
+
+    /**
+     * Starts the writer thread over the transport. Frames queued for a previous
+     * connection are discarded along with its writer.
+     *
+     * @param transport The connected transport to the broker.
+     */
+    void start(uMQTTTransport transport) {
+        stop();
+        Writer writer = new Writer(transport);
+        mWriter = writer;
+        writer.start();
+    }
+
+    void stop() {
+        Writer writer = mWriter;
+        mWriter = null;
+        if (writer != null) writer.stop();
+    }
+
+    private boolean enqueue(uMQTTFrame frame, uMQTTPublish publish, boolean closeAfter) {
+        Writer writer = mWriter;
+        if (writer == null) {
+            Timber.w("Not connected, dropping outbound frame");
+            return false;
         }
+        writer.offer(new Outbound(frame, publish, closeAfter));
+        return true;
     }
 
-    private void disconnect() {
+    void publish(uMQTTPublish publish) {
+        // QoS 0 publishes are not resent, so they are done with either way
+        if (!enqueue(publish.getFrame(), publish, false) && publish.getQosLevel() == 0b00)
+            getController().sentQoS0Packet(publish.getPacketId());
+    }
+
+    void handlePublishTransaction(@uMQTTFrame.MQPacketType int type, short packetId) {
         uMQTTFrame frame;
         try {
-            frame = new uMQTTFrame.Builder(uMQTTFrame.MQ_DISCONNECT)
-                    .build();
-        }
-        catch (BrokenMQTTFrameException e) {
+            frame = new uMQTTFrame.Builder(type).setPacketId(packetId).build();
+        } catch (BrokenMQTTFrameException e) {
             Timber.e(e);
             return;
         }
-        try {
-            mController.getSocket().getOutputStream().write(frame.getPacket());
-            mController.getSocket().close();
-        }
-        catch (Throwable e) {
-            mController.close();
-        }
+        enqueue(frame, null, false);
     }
 
-    private void subscribe(String topic, byte qosLevel, boolean unsubscribe) {
+    void connect(String clientId, String username, String password) {
         uMQTTFrame frame;
         try {
-            try {
-                uMQTTFrame.SubscribeBuilder builder = new uMQTTFrame.SubscribeBuilder()
-                        .setTopics(new String[]{topic})
-                        .setQoS(new byte[]{qosLevel});
+            uMQTTFrame.ConnectBuilder builder = new uMQTTFrame.ConnectBuilder()
+                    .setClientId(clientId)
+                    .setWillFlag()
+                    .setWillMessage("Disconnect")
+                    .setWillTopic("a/b")
+                    .setWillQoS(0b01)
+                    .setKeepAlive((short) getController().getConfiguration().getKeepAlive());
 
-                if (unsubscribe) builder.setUnsubscribe();
-                frame = builder.build();
-            }
-            catch (BrokenMQTTFrameException e) {
-                Timber.wtf(e);
-                return;
-            }
+            if (username != null) builder.setUsername(username);
+            if (password != null) builder.setPassword(password);
+            frame = builder.build();
+        }
+        catch (BrokenMQTTFrameException e) {
+            Timber.wtf(e);
+            return;
+        }
 
-            if (unsubscribe)
-                mController.addToUnhandledUnsubscriptions(frame.getPacketId(), new String[]{topic});
-            else
-                mController.setSubscriptionsAsAwaiting(frame.getPacketId(), new String[]{topic});
+        enqueue(frame, null, false);
+        Timber.v("Sending connect packet to broker.");
+    }
 
-            if(mController.getSocket().isConnected()) {
-                mController.getSocket().getOutputStream().write(frame.getPacket());
-                Timber.v("%subscribing to topic %s", unsubscribe ? "Un" : "S", topic);
-            }
+    /**
+     * Sends DISCONNECT and closes the socket once everything queued before it is written.
+     */
+    void disconnect() {
+        uMQTTFrame frame;
+        try {
+            frame = new uMQTTFrame.Builder(uMQTTFrame.MQ_DISCONNECT)
+                    .build();
         }
-        catch (Throwable e) {
-            Timber.e(e, "Could not send subscription packet for topic %s", topic);
-            mController.close();
-            mController.open();
+        catch (BrokenMQTTFrameException e) {
+            Timber.e(e);
+            return;
         }
+        Writer writer = mWriter;
+        mWriter = null;
+        if (writer != null) writer.offer(new Outbound(frame, null, true));
+    }
+
+    void subscribe(String topic, byte qosLevel, boolean unsubscribe) {
+        subscribe(new String[]{topic}, new byte[]{qosLevel}, unsubscribe);
     }
 
-    private void subscribe(String[] topics, byte[] qosLevels, boolean unsubscribe) {
+    void subscribe(String[] topics, byte[] qosLevels, boolean unsubscribe) {
         uMQTTFrame frame;
         try {
-            try {
-                uMQTTFrame.SubscribeBuilder builder = new uMQTTFrame.SubscribeBuilder()
-                        .setTopics(topics)
-                        .setQoS(qosLevels);
-
-                if (unsubscribe) builder.setUnsubscribe();
-                frame = builder.build();
-            }
-            catch (BrokenMQTTFrameException e) {
-                Timber.wtf(e);
-                return;
-            }
+            uMQTTFrame.SubscribeBuilder builder = new uMQTTFrame.SubscribeBuilder()
+                    .setTopics(topics)
+                    .setQoS(qosLevels);
 
-            if (unsubscribe)
-                mController.addToUnhandledUnsubscriptions(frame.getPacketId(), topics);
-            else
-                mController.setSubscriptionsAsAwaiting(frame.getPacketId(), topics);
-            mController.getSocket().getOutputStream().write(frame.getPacket());
-            Timber.v("Subscribing to %d topics", topics.length);
+            if (unsubscribe) builder.setUnsubscribe();
+            builder.setPacketIdAllocator(getController().getPacketIdAllocator());
+            frame = builder.build();
         }
-        catch (Throwable e) {
-            Timber.e(e, "Could not send subscription packets for %d topics", topics.length);
-            mController.close();
-            mController.open();
+        catch (BrokenMQTTFrameException e) {
+            Timber.wtf(e);
+            return;
         }
+
+        if (unsubscribe)
+            getController().addToUnhandledUnsubscriptions(frame.getPacketId(), topics);
+        else
+            getController().setSubscriptionsAsAwaiting(frame.getPacketId(), topics);
+        enqueue(frame, null, false);
+        Timber.v("%subscribing to %d topics", unsubscribe ? "Un" : "S", topics.length);
     }
 
-    private void pingreq() {
+    void unsubscribe(String[] topics) {
+        subscribe(topics, new byte[topics.length], true);
+    }
+
+    void pingreq() {
         uMQTTFrame frame;
         try {
-            try {
-                frame = new uMQTTFrame.Builder(uMQTTFrame.MQ_PINGREQ).build();
-            }
-            catch (BrokenMQTTFrameException e) {
-                Timber.wtf(e, "Missing what?");
-                return;
-            }
-
-            if(mController != null && mController.getSocket() != null && mController.getSocket().isConnected()) {
-                mController.getSocket().getOutputStream().write(frame.getPacket());
-                Timber.v("Sending PINGREQ");
-            }else{
-                Timber.v("NOT Sending PINGREQ");
-            }
+            frame = new uMQTTFrame.Builder(uMQTTFrame.MQ_PINGREQ).build();
         }
-        catch (Throwable e) {
-            Timber.e(e, "Could not send Ping to server");
-            mController.close();
-            mController.open();
+        catch (BrokenMQTTFrameException e) {
+            Timber.wtf(e, "Missing what?");
+            return;
         }
+
+        enqueue(frame, null, false);
+        Timber.v("Sending PINGREQ");
     }
 }
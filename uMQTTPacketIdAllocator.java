@@ -0,0 +1,113 @@
+package re.usto.umqtt;
+
+import android.content.SharedPreferences;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out packet identifiers, 1 to 65535, keeping a bitmap of the ones still in flight so
+ * an identifier held by an unacknowledged packet is never given out twice.
+ *
+ * <p> Identifiers are taken in sequence. To resume after a restart without reusing the
+ * identifiers handed out right before it, we persist the end of a lease of {@link #LEASE_SIZE}
+ * identifiers instead of each one; the next process starts from there. The preferences are
+ * thus written once per lease, and asynchronously.
+ *
+ * @author gabriel
+ */
+
+class uMQTTPacketIdAllocator {
+
+    private static final int MAX_PACKET_ID = 0xffff;
+    static final int LEASE_SIZE = 256;
+
+    private final SharedPreferences mPreferences;
+    private final String mPreferenceKey;
+    // Bit n set means packet id n is in flight
+    private final AtomicLongArray mInFlight = new AtomicLongArray((MAX_PACKET_ID + 1) / 64);
+    // Monotonic sequence, mapped onto 1..65535
+    private final AtomicInteger mSequence;
+    private volatile int mLeaseLimit;
+
+    /**
+     * Allocator whose position isn't persisted, for connections that don't outlive us.
+     */
+    uMQTTPacketIdAllocator() {
+        mPreferences = null;
+        mPreferenceKey = null;
+        mSequence = new AtomicInteger(0);
+        mLeaseLimit = 0;
+    }
+
+    uMQTTPacketIdAllocator(SharedPreferences preferences, String preferenceKey) {
+        mPreferences = preferences;
+        mPreferenceKey = preferenceKey;
+        int firstId = preferences.getInt(preferenceKey, 1) & MAX_PACKET_ID;
+        mSequence = new AtomicInteger(Math.max(firstId, 1) - 1);
+        // Forces a new lease to be written before the first identifier goes out
+        mLeaseLimit = mSequence.get();
+    }
+
+    private static int toPacketId(int sequence) {
+        return ((sequence & Integer.MAX_VALUE) % MAX_PACKET_ID) + 1;
+    }
+
+    /**
+     * @return A packet id not currently in flight. It stays taken until released.
+     * @throws IllegalStateException if all 65535 ids are in flight.
+     */
+    short allocate() {
+        for (int attempt = 0; attempt < MAX_PACKET_ID; ++attempt) {
+            int sequence = mSequence.getAndIncrement();
+            if (sequence - mLeaseLimit >= 0) extendLease(sequence);
+
+            int packetId = toPacketId(sequence);
+            if (tryAcquire(packetId)) return (short) packetId;
+        }
+        throw new IllegalStateException("No packet id available, too many packets in flight");
+    }
+
+    /**
+     * Marks an id given out somewhere else (e.g. a republish) as in flight.
+     */
+    void reserve(short packetId) {
+        tryAcquire(packetId & MAX_PACKET_ID);
+    }
+
+    void release(short packetId) {
+        int id = packetId & MAX_PACKET_ID;
+        int word = id >>> 6;
+        long bit = 1L << (id & 63);
+        while (true) {
+            long current = mInFlight.get(word);
+            if ((current & bit) == 0
+                    || mInFlight.compareAndSet(word, current, current & ~bit)) return;
+        }
+    }
+
+    boolean isInFlight(short packetId) {
+        int id = packetId & MAX_PACKET_ID;
+        return (mInFlight.get(id >>> 6) & (1L << (id & 63))) != 0;
+    }
+
+    private boolean tryAcquire(int id) {
+        if (id == 0) return false;
+        int word = id >>> 6;
+        long bit = 1L << (id & 63);
+        while (true) {
+            long current = mInFlight.get(word);
+            if ((current & bit) != 0) return false;
+            if (mInFlight.compareAndSet(word, current, current | bit)) return true;
+        }
+    }
+
+    private synchronized void extendLease(int sequence) {
+        if (sequence - mLeaseLimit < 0) return;
+        mLeaseLimit = sequence + LEASE_SIZE;
+        if (mPreferences == null) return;
+        mPreferences.edit()
+                .putInt(mPreferenceKey, toPacketId(mLeaseLimit))
+                .apply();
+    }
+}
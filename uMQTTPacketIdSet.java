@@ -0,0 +1,96 @@
+package re.usto.umqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Set of packet ids as a 65536 bit bitmap, 8KB whatever the amount of ids in it. Used for
+ * inbound QoS 2 publishes awaiting PUBREL, where the id is all we need to keep.
+ *
+ * <p> It can be backed by a file, mapped in memory, so the set survives the process being
+ * killed. Every change writes the single word it touched to the mapping.
+ *
+ * @author gabriel
+ */
+
+class uMQTTPacketIdSet {
+
+    private static final int WORDS = 0x10000 / 64;
+
+    private final long[] mWords = new long[WORDS];
+    private final MappedByteBuffer mStore;
+    private int mSize = 0;
+
+    uMQTTPacketIdSet() {
+        mStore = null;
+    }
+
+    /**
+     * @param file where the set is kept, loaded if it exists.
+     */
+    uMQTTPacketIdSet(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(WORDS * 8);
+            mStore = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, WORDS * 8);
+        }
+        finally {
+            // The mapping stays valid once the file is closed
+            raf.close();
+        }
+        for (int i = 0; i < WORDS; ++i) {
+            mWords[i] = mStore.getLong(i * 8);
+            mSize += Long.bitCount(mWords[i]);
+        }
+    }
+
+    /**
+     * @return Whether the id was not in the set already.
+     */
+    synchronized boolean add(short packetId) {
+        int id = packetId & 0xffff;
+        long word = mWords[id >>> 6];
+        long bit = 1L << (id & 63);
+        if ((word & bit) != 0) return false;
+        store(id >>> 6, word | bit);
+        ++mSize;
+        return true;
+    }
+
+    /**
+     * @return Whether the id was in the set.
+     */
+    synchronized boolean remove(short packetId) {
+        int id = packetId & 0xffff;
+        long word = mWords[id >>> 6];
+        long bit = 1L << (id & 63);
+        if ((word & bit) == 0) return false;
+        store(id >>> 6, word & ~bit);
+        --mSize;
+        return true;
+    }
+
+    synchronized boolean contains(short packetId) {
+        int id = packetId & 0xffff;
+        return (mWords[id >>> 6] & (1L << (id & 63))) != 0;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < WORDS; ++i) {
+            if (mWords[i] != 0) store(i, 0);
+        }
+        mSize = 0;
+    }
+
+    private void store(int index, long word) {
+        mWords[index] = word;
+        if (mStore != null) mStore.putLong(index * 8, word);
+    }
+}
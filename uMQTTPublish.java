@@ -15,14 +15,15 @@ public class uMQTTPublish {
 
     private String topic;
     private String message;
+    private byte[] payload;
     private byte qosLevel;
     private uMQTTFrame frame;
     private byte[] packet = null;
-    private short packetId = 0;
-    private boolean inbound = false;
     private uMQTTPublisher publisher;
+    // When it was last handed to the writer (System.nanoTime()), 0 if never
+    private volatile long sentAt = 0;
 
-    static final int
+    public static final int
             PUB_PUBLISHING = 0,
             PUB_PUBLISHED = 1,
             PUB_RECEIVED = 2,
@@ -36,7 +37,7 @@ public class uMQTTPublish {
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({PUB_PUBLISHING, PUB_PUBLISHED, PUB_RECEIVED, PUB_RELEASED, PUB_COMPLETED})
-    @interface MQPubStatus {
+    public @interface MQPubStatus {
     }
 
     private @MQPubStatus
@@ -44,15 +45,35 @@ public class uMQTTPublish {
 
     uMQTTPublish(String topic, String message, byte qosLevel, uMQTTPublisher publisher,
                  short packetId) {
-        this.topic = topic;
+        this(topic, message.getBytes(uMQTTMessage.UTF_8), qosLevel, publisher, packetId);
         this.message = message;
+    }
+
+    uMQTTPublish(String topic, String message, byte qosLevel, uMQTTPublisher publisher) {
+        this(topic, message, qosLevel, publisher, (short)0);
+    }
+
+    /**
+     * Outbound publish with a binary payload. The bytes are sent as they are.
+     */
+    uMQTTPublish(String topic, byte[] payload, byte qosLevel, uMQTTPublisher publisher,
+                 short packetId) {
+        this(topic, payload, qosLevel, publisher, packetId,
+                publisher.getClient().getPacketIdAllocator());
+    }
+
+    private uMQTTPublish(String topic, byte[] payload, byte qosLevel, uMQTTPublisher publisher,
+                         short packetId, uMQTTPacketIdAllocator allocator) {
+        this.topic = topic;
+        this.payload = payload;
         this.qosLevel = qosLevel;
 
         try {
             uMQTTFrame.PublishBuilder builder = new uMQTTFrame.PublishBuilder()
                     .setTopic(topic)
-                    .setPayload(message)
+                    .setPayload(payload)
                     .setQosLevel(qosLevel);
+            builder.setPacketIdAllocator(allocator);
 
             if (packetId != 0) {
                 builder.setPacketId(packetId).setDup();
@@ -66,57 +87,22 @@ public class uMQTTPublish {
         pubState = PUB_PUBLISHING;
     }
 
-    uMQTTPublish(String topic, String message, byte qosLevel, uMQTTPublisher publisher) {
-        this(topic, message, qosLevel, publisher, (short)0);
-    }
-
-    uMQTTPublish(byte[] packet) {
-        if (((packet[0] >> 4) & 0xf) != uMQTTFrame.MQ_PUBLISH)
-            throw new IllegalStateException("Not a PUBLISH packet");
-
-        this.packet = packet;
-
-        // Get QoS level
-        this.qosLevel = (byte)((packet[0] >> 1) & 0b11);
-
-        // Fetch packet full size (remaining + 2)
-        int fullSize = 0;
-        int i = 0;
-        int multiplier = 1;
-        do {
-            i++;
-            fullSize += (packet[i] & 0x7f) * multiplier;
-            multiplier *= 0x80;
-        } while ((packet[i] & 0x80) != 0);
-        fullSize += ++i;
-
-        // Fetch topic. First, get topic size
-        StringBuilder builder = new StringBuilder();
-        int currentSize = (packet[i] << 8) + packet[i + 1];
-        i += 2;
-        for (int j = 0; j <  currentSize; ++j) {
-            builder.append((char) packet[i + j]);
-        }
-        this.topic = builder.toString();
-
-        // Packet ID
-        i += this.topic.length();
-
-        if (this.qosLevel != 0) {
-            this.packetId =  uMQTTFrame.fetchBytes(packet[i], packet[i + 1]);
-            i += 2;
-        }
-
-        // And now the payload
-        builder = new StringBuilder();
-        for (; i < fullSize; ++i) {
-            builder.append((char) packet[i]);
-        }
-        this.message = builder.toString();
-
-        // This must be an incoming packet, and thus it's state is published
-        this.inbound = true;
-        this.pubState = PUB_PUBLISHED;
+    /**
+     * Outbound publish read back from the journal after a restart. Nobody is waiting on it,
+     * so it has no publisher.
+     * @param packet the PUBLISH frame as it was journaled.
+     * @param released whether the broker already sent PUBREC for it.
+     * @param allocator the restoring client's, its packet id is reserved there.
+     */
+    static uMQTTPublish restore(byte[] packet, boolean released,
+                                uMQTTPacketIdAllocator allocator) {
+        uMQTTMessage message = new uMQTTMessage(packet, 0, packet.length);
+        byte[] payload = new byte[message.getPayloadLength()];
+        message.getPayload().get(payload);
+        uMQTTPublish publish = new uMQTTPublish(message.getTopic(), payload,
+                message.getQosLevel(), null, message.getPacketId(), allocator);
+        publish.pubState = released ? PUB_RECEIVED : PUB_PUBLISHED;
+        return publish;
     }
 
     void transactionAdvance() {
@@ -124,14 +110,13 @@ public class uMQTTPublish {
             case PUB_PUBLISHING:
                 if (qosLevel == 0) {
                     pubState = PUB_COMPLETED;
-                    publisher.completePublish(getPacketId());
+                    completePublish();
                 } else pubState = PUB_PUBLISHED;
                 break;
             case PUB_PUBLISHED:
                 if (qosLevel == 1 || qosLevel == 0) {
                     pubState = PUB_COMPLETED;
-                    if (!inbound) publisher.completePublish(getPacketId());
-                    else uMQTT.getInstance().publishCallback(topic, message);
+                    completePublish();
                 } else {
                     pubState = PUB_RECEIVED;
                 }
@@ -139,31 +124,48 @@ public class uMQTTPublish {
             case PUB_RECEIVED:
             case PUB_RELEASED:
                 pubState = PUB_COMPLETED;
-                if (!inbound) publisher.completePublish(getPacketId());
-                else uMQTT.getInstance().publishCallback(topic, message);
+                completePublish();
                 break;
             case PUB_COMPLETED:
                 break;
         }
     }
 
+    private void completePublish() {
+        if (publisher != null) publisher.completePublish(getPacketId());
+    }
+
     String getTopic() {
         return topic;
     }
 
     public String getMessage() {
+        if (message == null) message = new String(payload, uMQTTMessage.UTF_8);
         return message;
     }
 
+    byte[] getPayload() {
+        return payload;
+    }
+
     byte getQosLevel() {
         return qosLevel;
     }
 
+    void setSentAt(long sentAt) {
+        this.sentAt = sentAt;
+    }
+
+    long getSentAt() {
+        return sentAt;
+    }
+
     short getPacketId() {
-        if (packetId == 0) {
-            return frame.getPacketId();
-        }
-        return packetId;
+        return frame.getPacketId();
+    }
+
+    uMQTTFrame getFrame() {
+        return frame;
     }
 
     byte[] getPacket() {
@@ -175,7 +177,9 @@ public class uMQTTPublish {
         return pubState;
     }
 
-    boolean isMessageTooLong() { return message.length() > 256; }
+    int getPayloadLength() {
+        return payload.length;
+    }
 
     boolean publishCompleted() {
         return pubState == PUB_COMPLETED;
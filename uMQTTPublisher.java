@@ -10,8 +10,8 @@ import com.birbit.android.jobqueue.RetryConstraint;
 import com.birbit.android.jobqueue.TagConstraint;
 import com.birbit.android.jobqueue.config.Configuration;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import timber.log.Timber;
 
@@ -23,9 +23,10 @@ public abstract class uMQTTPublisher {
 
     protected byte qosLevel = 0b00;
     protected String topic;
+    private final uMQTT mClient;
     private JobManager mPublishManager;
     private ArrayList<String> mPublishJobs;
-    private HashMap<Short, uMQTTPublish> mPublishes;
+    private uMQTTShortMap<uMQTTPublish> mPublishes;
 
     private static final String JOB_PUBLISH_PACKET_ID = "pubPacketId";
     private static final String JOB_PUBLISH = "pubJob";
@@ -35,16 +36,25 @@ public abstract class uMQTTPublisher {
     }
 
     protected uMQTTPublisher(String topic, byte qosLevel) {
+        this(uMQTT.getInstance(), topic, qosLevel);
+    }
+
+    /**
+     * Publisher bound to a client other than the default one.
+     * @see uMQTT#create
+     */
+    protected uMQTTPublisher(uMQTT client, String topic, byte qosLevel) {
         this.topic = topic;
         this.qosLevel = qosLevel;
+        mClient = client;
         mPublishManager = new JobManager(
-                new Configuration.Builder(uMQTT.getInstance().getApplicationContext())
+                new Configuration.Builder(client.getApplicationContext())
                         .minConsumerCount(1)
                         .maxConsumerCount(1)
                         .loadFactor(5)
                         .build());
         mPublishJobs = new ArrayList<>();
-        mPublishes = new HashMap<>();
+        mPublishes = new uMQTTShortMap<>();
     }
 
     public short preparePublish(String message){
@@ -65,6 +75,34 @@ public abstract class uMQTTPublisher {
         return publish.getPacketId();
     }
 
+    /**
+     * Publishes a binary payload. The bytes reach the socket as they are, so there's no
+     * need to encode them as text first.
+     */
+    public short publish(byte[] payload) {
+        uMQTTPublish publish = new uMQTTPublish(topic, payload, qosLevel, this, (short)0);
+        publish(publish, publish.getPacketId());
+        return publish.getPacketId();
+    }
+
+    /**
+     * Publishes the remaining bytes of the buffer. Its position is left untouched.
+     */
+    public short publish(ByteBuffer payload) {
+        return publish(uMQTTFrame.toByteArray(payload));
+    }
+
+    public short republish(byte[] payload, int packetId) {
+        uMQTTPublish publish = new uMQTTPublish(topic, payload, qosLevel, this,
+                (short)(packetId & 0xffff));
+        publish(publish, publish.getPacketId());
+        return publish.getPacketId();
+    }
+
+    public short republish(ByteBuffer payload, int packetId) {
+        return republish(uMQTTFrame.toByteArray(payload), packetId);
+    }
+
     private void publish(uMQTTPublish publish, short packetId) {
         if (publish.getQosLevel() > 0) {
             mPublishes.put(publish.getPacketId(), publish);
@@ -73,7 +111,7 @@ public abstract class uMQTTPublisher {
         }
         else {
             mPublishJobs.add(buildJobTag(packetId));
-            uMQTT.getInstance().addPublish(publish);
+            mClient.addPublish(publish);
         }
     }
 
@@ -98,7 +136,7 @@ public abstract class uMQTTPublisher {
         public void onRun() throws Throwable {
             uMQTTPublish publish = mPublishes.get(mPacketId);
             if (publish == null) return;
-            uMQTT.getInstance().addPublish(publish);
+            mClient.addPublish(publish);
         }
 
         @Override
@@ -117,6 +155,10 @@ public abstract class uMQTTPublisher {
         return mPublishes.get(packetId);
     }
 
+    uMQTT getClient() {
+        return mClient;
+    }
+
     void completePublish(short packetId) {
         String jobTag = buildJobTag(packetId);
         if (!mPublishJobs.contains(jobTag))
@@ -0,0 +1,432 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * Connection to a broker driven by an {@link uMQTTEventLoopGroup}. Sessions keep their own
+ * decoder, outbound queue, packet ids and keep-alive timer, but no thread: all their I/O
+ * happens on the event loop they were given, alongside many other sessions.
+ *
+ * <p> Publishing and subscribing may be done from any thread. Listener callbacks run on the
+ * event loop, so they should return quickly.
+ *
+ * @author gabriel
+ */
+
+public class uMQTTSession {
+
+    public interface Listener {
+        void onConnected(uMQTTSession session);
+
+        /**
+         * The message is only valid until this returns, see {@link uMQTTMessage#copy()}.
+         */
+        void onMessage(uMQTTSession session, uMQTTMessage message);
+
+        /**
+         * A QoS 1/2 publish was acknowledged by the broker.
+         */
+        void onPublishCompleted(uMQTTSession session, short packetId);
+
+        /**
+         * @param cause what went wrong, or null if the session was closed on purpose.
+         */
+        void onClosed(uMQTTSession session, IOException cause);
+    }
+
+    private static final int
+            STATE_CONNECTING = 0,
+            STATE_AWAITING_CONNACK = 1,
+            STATE_CONNECTED = 2,
+            STATE_CLOSED = 3;
+
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    private final uMQTTEventLoop mLoop;
+    private final String mHost;
+    private final int mPort;
+    private final String mClientId;
+    private final String mUsername;
+    private final String mPassword;
+    private final short mKeepAlive;
+    private final Listener mListener;
+
+    private final uMQTTPacketIdAllocator mPacketIds = new uMQTTPacketIdAllocator();
+    // Outbound QoS 1/2 publishes until PUBACK or PUBCOMP
+    private final uMQTTShortMap<uMQTTFrame> mInFlight = new uMQTTShortMap<>();
+    // Inbound QoS 2 publishes delivered and awaiting PUBREL, created on first use
+    private uMQTTPacketIdSet mAwaitingRelease;
+    private final uMQTTFrameDecoder mDecoder;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> mOutbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Everything below is only touched by the event loop
+    private final ArrayDeque<ByteBuffer> mWriting = new ArrayDeque<>();
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private volatile int mState = STATE_CONNECTING;
+    private boolean mCloseAfterFlush = false;
+    private long mStartedAt;
+    private long mLastWrite;
+    private long mPingSentAt = 0;
+    int mLoopIndex = -1;
+
+    uMQTTSession(uMQTTEventLoop loop, String host, int port, String clientId,
+                 String username, String password, short keepAlive, Listener listener) {
+        mLoop = loop;
+        mHost = host;
+        mPort = port;
+        mClientId = clientId;
+        mUsername = username;
+        mPassword = password;
+        mKeepAlive = keepAlive;
+        mListener = listener;
+        mDecoder = new uMQTTFrameDecoder(loop.getMaxFrameSize(), loop.getBufferPool(),
+                mFrameHandler);
+    }
+
+    public String getClientId() {
+        return mClientId;
+    }
+
+    public boolean isConnected() {
+        return mState == STATE_CONNECTED;
+    }
+
+    /**
+     * @return The packet id of the publish, 0 for QoS 0.
+     */
+    public short publish(String topic, byte[] payload, byte qosLevel) {
+        uMQTTFrame frame;
+        try {
+            uMQTTFrame.PublishBuilder builder = new uMQTTFrame.PublishBuilder();
+            builder.setPacketIdAllocator(mPacketIds);
+            frame = builder.setTopic(topic)
+                    .setPayload(payload)
+                    .setQosLevel(qosLevel)
+                    .build();
+        }
+        catch (BrokenMQTTFrameException e) {
+            Timber.e(e, "Could not build publish");
+            return 0;
+        }
+
+        short packetId = frame.getPacketId();
+        if (qosLevel == 0) {
+            mPacketIds.release(packetId);
+            packetId = 0;
+        }
+        else mInFlight.put(packetId, frame);
+        send(frame);
+        return packetId;
+    }
+
+    public void subscribe(String topic, byte qosLevel) {
+        subscribe(topic, qosLevel, false);
+    }
+
+    public void unsubscribe(String topic) {
+        subscribe(topic, (byte) 0, true);
+    }
+
+    private void subscribe(String topic, byte qosLevel, boolean unsubscribe) {
+        uMQTTTopicTree.validateFilter(topic);
+        try {
+            uMQTTFrame.SubscribeBuilder builder = new uMQTTFrame.SubscribeBuilder();
+            builder.setPacketIdAllocator(mPacketIds);
+            builder.setTopics(new String[]{topic}).setQoS(new byte[]{qosLevel});
+            if (unsubscribe) builder.setUnsubscribe();
+            send(builder.build());
+        }
+        catch (BrokenMQTTFrameException e) {
+            Timber.e(e, "Could not build subscription");
+        }
+    }
+
+    /**
+     * Sends DISCONNECT and closes the connection once everything queued before it is out.
+     */
+    public void close() {
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == STATE_CLOSED) return;
+                if (mState == STATE_CONNECTING) {
+                    closeChannel(null);
+                    return;
+                }
+                sendControl(uMQTTFrame.MQ_DISCONNECT, (short) 0);
+                mCloseAfterFlush = true;
+            }
+        });
+    }
+
+    private void send(uMQTTFrame frame) {
+        mOutbound.offer(ByteBuffer.wrap(frame.getPacket()));
+        if (mFlushScheduled.compareAndSet(false, true)) mLoop.execute(mFlushTask);
+    }
+
+    private void sendControl(@uMQTTFrame.MQPacketType int type, short packetId) {
+        try {
+            uMQTTFrame.Builder builder = new uMQTTFrame.Builder(type);
+            if (packetId != 0) builder.setPacketId(packetId);
+            send(builder.build());
+        }
+        catch (BrokenMQTTFrameException e) {
+            Timber.e(e);
+        }
+    }
+
+    /**
+     * Starts connecting. Called on the event loop.
+     */
+    void open() {
+        mStartedAt = System.nanoTime();
+        try {
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            boolean connected = mChannel.connect(new InetSocketAddress(mHost, mPort));
+            mKey = mLoop.register(mChannel, connected ? 0 : SelectionKey.OP_CONNECT, this);
+            if (connected) onChannelConnected();
+        }
+        catch (IOException e) {
+            closeChannel(e);
+        }
+    }
+
+    /**
+     * Called on the event loop when the channel is ready for the given operations.
+     */
+    void onReady(int readyOps) {
+        try {
+            if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+                if (!mChannel.finishConnect()) return;
+                onChannelConnected();
+            }
+            if ((readyOps & SelectionKey.OP_READ) != 0) read();
+            if ((readyOps & SelectionKey.OP_WRITE) != 0 && mState != STATE_CLOSED) flush();
+        }
+        catch (IOException e) {
+            closeChannel(e);
+        }
+    }
+
+    private void onChannelConnected() throws IOException {
+        mState = STATE_AWAITING_CONNACK;
+        mKey.interestOps(SelectionKey.OP_READ);
+
+        try {
+            uMQTTFrame.ConnectBuilder builder = new uMQTTFrame.ConnectBuilder()
+                    .setClientId(mClientId)
+                    .setCleanSession()
+                    .setKeepAlive(mKeepAlive);
+            if (mUsername != null) builder.setUsername(mUsername);
+            if (mPassword != null) builder.setPassword(mPassword);
+            // CONNECT goes ahead of whatever was queued while connecting
+            mWriting.addFirst(ByteBuffer.wrap(builder.build().getPacket()));
+        }
+        catch (BrokenMQTTFrameException e) {
+            throw new IOException("Could not build CONNECT", e);
+        }
+        mFlushScheduled.set(true);
+        flush();
+    }
+
+    private void read() throws IOException {
+        while (mState != STATE_CLOSED) {
+            int read = mChannel.read(mDecoder.getReadBuffer());
+            if (read == -1) throw new IOException("Connection closed by broker");
+            if (read == 0) return;
+            mDecoder.onRead();
+        }
+    }
+
+    private final uMQTTFrameDecoder.Handler mFrameHandler = new uMQTTFrameDecoder.Handler() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int size) throws IOException {
+            onFrameReceived(buffer, offset, size);
+        }
+
+        @Override
+        public void onOverflowedPublish(byte qosLevel, short packetId) {
+            sendControl(qosLevel == 0b01 ? uMQTTFrame.MQ_PUBACK : uMQTTFrame.MQ_PUBREC,
+                    packetId);
+        }
+    };
+
+    private void onFrameReceived(byte[] buffer, int offset, int size) throws IOException {
+        @uMQTTFrame.MQPacketType int type = (buffer[offset] >> 4) & 0xf;
+        if (mState == STATE_AWAITING_CONNACK) {
+            if (type != uMQTTFrame.MQ_CONNACK) return;
+            byte returnCode = buffer[offset + 3];
+            if (returnCode != 0)
+                throw new IOException("Connection refused by broker (" + returnCode + ")");
+            mState = STATE_CONNECTED;
+            mListener.onConnected(this);
+            return;
+        }
+
+        short packetId = size >= 4
+                ? uMQTTFrame.fetchBytes(buffer[offset + 2], buffer[offset + 3]) : 0;
+        switch (type) {
+            case uMQTTFrame.MQ_PUBLISH:
+                onPublishReceived(new uMQTTMessage(buffer, offset, size));
+                break;
+            case uMQTTFrame.MQ_PUBREL:
+                if (mAwaitingRelease != null) mAwaitingRelease.remove(packetId);
+                sendControl(uMQTTFrame.MQ_PUBCOMP, packetId);
+                break;
+            case uMQTTFrame.MQ_PUBACK:
+            case uMQTTFrame.MQ_PUBCOMP:
+                if (mInFlight.remove(packetId) != null) {
+                    mPacketIds.release(packetId);
+                    mListener.onPublishCompleted(this, packetId);
+                }
+                break;
+            case uMQTTFrame.MQ_PUBREC:
+                sendControl(uMQTTFrame.MQ_PUBREL, packetId);
+                break;
+            case uMQTTFrame.MQ_SUBACK:
+            case uMQTTFrame.MQ_UNSUBACK:
+                mPacketIds.release(packetId);
+                break;
+            case uMQTTFrame.MQ_PINGRESP:
+                mPingSentAt = 0;
+                break;
+            default:
+                Timber.w("Unexpected packet type (#%d) received", type);
+                break;
+        }
+    }
+
+    private void onPublishReceived(uMQTTMessage message) {
+        short packetId = message.getPacketId();
+        switch (message.getQosLevel()) {
+            case 0b00:
+                mListener.onMessage(this, message);
+                break;
+            case 0b01:
+                mListener.onMessage(this, message);
+                sendControl(uMQTTFrame.MQ_PUBACK, packetId);
+                break;
+            default:
+                if (mAwaitingRelease == null) mAwaitingRelease = new uMQTTPacketIdSet();
+                if (mAwaitingRelease.add(packetId)) mListener.onMessage(this, message);
+                sendControl(uMQTTFrame.MQ_PUBREC, packetId);
+                break;
+        }
+    }
+
+    /**
+     * Writes whatever is queued, as one gathering write when possible. If the channel can't
+     * take it all, the rest waits for it to be writable again.
+     */
+    private void flush() {
+        if (mState == STATE_CLOSED || mState == STATE_CONNECTING) return;
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                while ((buffer = mOutbound.poll()) != null) mWriting.add(buffer);
+
+                ByteBuffer[] gather = mLoop.getGatherBuffers();
+                while (!mWriting.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer pending : mWriting) {
+                        gather[count++] = pending;
+                        if (count == gather.length) break;
+                    }
+                    long written = mChannel.write(gather, 0, count);
+                    if (written > 0) mLastWrite = System.nanoTime();
+
+                    int done = 0;
+                    while (done < count && !gather[done].hasRemaining()) {
+                        mWriting.pollFirst();
+                        ++done;
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                    if (done < count) {
+                        mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                if (mCloseAfterFlush) {
+                    closeChannel(null);
+                    return;
+                }
+                if ((mKey.interestOps() & SelectionKey.OP_WRITE) != 0)
+                    mKey.interestOps(SelectionKey.OP_READ);
+
+                mFlushScheduled.set(false);
+                // Something might have been queued before we cleared the flag
+                if (mOutbound.isEmpty() || !mFlushScheduled.compareAndSet(false, true)) return;
+            }
+        }
+        catch (IOException e) {
+            closeChannel(e);
+        }
+    }
+
+    /**
+     * Sends PINGREQ when we've been quiet for the keep-alive period, and gives up on the
+     * broker when it doesn't answer in as much time. Called on the event loop every tick.
+     */
+    void onTick(long now) {
+        if (mState == STATE_CONNECTING || mState == STATE_AWAITING_CONNACK) {
+            if (now - mStartedAt > CONNECT_TIMEOUT)
+                closeChannel(new IOException("Timed out connecting to broker"));
+            return;
+        }
+        if (mState != STATE_CONNECTED || mKeepAlive <= 0) return;
+
+        long keepAlive = TimeUnit.SECONDS.toNanos(mKeepAlive);
+        if (mPingSentAt != 0) {
+            if (now - mPingSentAt > keepAlive)
+                closeChannel(new IOException("Broker didn't answer PINGREQ"));
+        }
+        else if (now - mLastWrite >= keepAlive) {
+            mPingSentAt = now;
+            sendControl(uMQTTFrame.MQ_PINGREQ, (short) 0);
+        }
+    }
+
+    void closeChannel(IOException cause) {
+        if (mState == STATE_CLOSED) return;
+        mState = STATE_CLOSED;
+        if (cause != null) Timber.w(cause, "Session %s closed", mClientId);
+
+        if (mKey != null) mKey.cancel();
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            }
+            catch (IOException e) {
+                Timber.v(e, "Could not close channel");
+            }
+        }
+        mDecoder.reset();
+        mWriting.clear();
+        mOutbound.clear();
+        mLoop.unregister(this);
+        mListener.onClosed(this, cause);
+    }
+}
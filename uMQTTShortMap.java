@@ -0,0 +1,183 @@
+package re.usto.umqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map from packet id to in-flight state, shared by the listener, the writer and whoever
+ * publishes. Keys are stored as primitives in an open addressing table, so nothing is boxed.
+ *
+ * <p> Lookups take no lock: they only go through volatile reads of the current table.
+ * Updates are serialized on the map, which is fine for the rate we update in-flight state.
+ * When the table fills up it is rebuilt and swapped in; readers still holding the old one
+ * see the state from before the swap.
+ *
+ * <p> Key 0 is not a valid packet id, and can't be stored. Looking it up or removing it, as
+ * a malformed acknowledgement from the broker would, finds nothing.
+ *
+ * @author gabriel
+ */
+
+class uMQTTShortMap<V> {
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table<V> {
+        final AtomicIntegerArray keys;
+        final AtomicReferenceArray<V> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table<V> mTable;
+    private int mSize = 0;
+    // Slots taken by keys or by removed markers, which still lengthen probe sequences
+    private int mUsed = 0;
+
+    uMQTTShortMap() {
+        this(MIN_CAPACITY);
+    }
+
+    uMQTTShortMap(int expectedSize) {
+        mTable = new Table<>(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        // Kept at most half full
+        while (capacity < size * 2) capacity <<= 1;
+        return capacity;
+    }
+
+    private static int toKey(short packetId) {
+        return packetId & 0xffff;
+    }
+
+    private static int slot(int key, int mask) {
+        // Packet ids are sequential, spread them so neighbours don't share probe runs
+        int hash = key * 0x9E3779B1;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    V get(short packetId) {
+        int key = toKey(packetId);
+        if (key == EMPTY) return null;
+        Table<V> table = mTable;
+        for (int i = slot(key, table.mask), probes = 0; probes <= table.mask;
+             i = (i + 1) & table.mask, ++probes) {
+            int current = table.keys.get(i);
+            if (current == key) {
+                V value = table.values.get(i);
+                // The slot may have been reused for another key meanwhile, look again if so
+                if (table.keys.get(i) == key) return value;
+                return get(packetId);
+            }
+            if (current == EMPTY) return null;
+        }
+        return null;
+    }
+
+    boolean containsKey(short packetId) {
+        return get(packetId) != null;
+    }
+
+    synchronized V put(short packetId, V value) {
+        if (value == null) throw new NullPointerException("Null values are not supported");
+        int key = toKey(packetId);
+        if (key == EMPTY) throw new IllegalArgumentException("Packet id 0 can't be a key");
+        Table<V> table = mTable;
+
+        int free = -1;
+        for (int i = slot(key, table.mask), probes = 0; probes <= table.mask;
+             i = (i + 1) & table.mask, ++probes) {
+            int current = table.keys.get(i);
+            if (current == key) return table.values.getAndSet(i, value);
+            if (current == REMOVED && free < 0) free = i;
+            if (current == EMPTY) {
+                if (free < 0) {
+                    free = i;
+                    ++mUsed;
+                }
+                break;
+            }
+        }
+
+        // Value goes first, so a reader finding the key always finds its value
+        table.values.set(free, value);
+        table.keys.set(free, key);
+        ++mSize;
+        if (mUsed * 2 > table.mask + 1) rebuild(capacityFor(mSize));
+        return null;
+    }
+
+    synchronized V remove(short packetId) {
+        int key = toKey(packetId);
+        if (key == EMPTY) return null;
+        Table<V> table = mTable;
+        for (int i = slot(key, table.mask), probes = 0; probes <= table.mask;
+             i = (i + 1) & table.mask, ++probes) {
+            int current = table.keys.get(i);
+            if (current == key) {
+                V previous = table.values.getAndSet(i, null);
+                table.keys.set(i, REMOVED);
+                --mSize;
+                return previous;
+            }
+            if (current == EMPTY) return null;
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    synchronized void clear() {
+        mTable = new Table<>(MIN_CAPACITY);
+        mSize = 0;
+        mUsed = 0;
+    }
+
+    /**
+     * @return Snapshot of the values, in no particular order.
+     */
+    List<V> values() {
+        Table<V> table = mTable;
+        List<V> values = new ArrayList<>();
+        for (int i = 0; i <= table.mask; ++i) {
+            V value = table.values.get(i);
+            if (value != null) values.add(value);
+        }
+        return values;
+    }
+
+    private void rebuild(int capacity) {
+        Table<V> old = mTable;
+        Table<V> table = new Table<>(capacity);
+        for (int i = 0; i <= old.mask; ++i) {
+            int key = old.keys.get(i);
+            V value = old.values.get(i);
+            if (key == EMPTY || key == REMOVED || value == null) continue;
+
+            int j = slot(key, table.mask);
+            while (table.keys.get(j) != EMPTY) j = (j + 1) & table.mask;
+            table.values.set(j, value);
+            table.keys.set(j, key);
+        }
+        mUsed = mSize;
+        mTable = table;
+    }
+}
@@ -0,0 +1,92 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport over a classic blocking {@link Socket}. Heap buffers are read into and written
+ * from directly, through their backing array.
+ *
+ * @author gabriel
+ */
+
+public class uMQTTSocketTransport implements uMQTTTransport {
+
+    private static final Factory FACTORY = new Factory() {
+        @Override
+        public uMQTTTransport create() {
+            return new uMQTTSocketTransport();
+        }
+    };
+
+    // Size = 4KB. Used to copy from and to buffers with no backing array
+    private static final int COPY_BUFFER_LENGTH = 4 * 1024;
+
+    private Socket mSocket;
+    private InputStream mInputStream;
+    private OutputStream mOutputStream;
+
+    public static Factory factory() {
+        return FACTORY;
+    }
+
+    @Override
+    public void connect(String host, int port) throws IOException {
+        mSocket = new Socket();
+        mSocket.setTcpNoDelay(true);
+        mSocket.connect(new InetSocketAddress(host, port));
+        mInputStream = mSocket.getInputStream();
+        mOutputStream = mSocket.getOutputStream();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (dst.hasArray()) {
+            int read = mInputStream.read(dst.array(), dst.arrayOffset() + dst.position(),
+                    dst.remaining());
+            if (read > 0) dst.position(dst.position() + read);
+            return read;
+        }
+
+        byte[] copy = new byte[Math.min(dst.remaining(), COPY_BUFFER_LENGTH)];
+        int read = mInputStream.read(copy);
+        if (read > 0) dst.put(copy, 0, read);
+        return read;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        if (src.hasArray()) {
+            mOutputStream.write(src.array(), src.arrayOffset() + src.position(),
+                    src.remaining());
+            src.position(src.limit());
+            return;
+        }
+
+        byte[] copy = new byte[Math.min(src.remaining(), COPY_BUFFER_LENGTH)];
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), copy.length);
+            src.get(copy, 0, length);
+            mOutputStream.write(copy, 0, length);
+        }
+    }
+
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mSocket != null && mSocket.isConnected() && !mSocket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mSocket != null) mSocket.close();
+    }
+}
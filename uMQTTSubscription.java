@@ -10,7 +10,11 @@ public class uMQTTSubscription {
     private byte requestedQosLevel;
     private byte grantedQosLevel = -1;
     private OnReceivedPublish publishCallback;
+    private OnReceivedMessage messageCallback;
+    private OnReceivedBinaryPublish binaryCallback;
     private short requestPacketId;
+    // When the request went out (System.nanoTime()), for the SUBACK latency
+    private long requestedAt;
 
     uMQTTSubscription(String topic, byte qosLevel, OnReceivedPublish onReceivedPublish) {
         this.topic = topic;
@@ -18,6 +22,18 @@ public class uMQTTSubscription {
         publishCallback = onReceivedPublish;
     }
 
+    uMQTTSubscription(String topic, byte qosLevel, OnReceivedMessage onReceivedMessage) {
+        this.topic = topic;
+        this.requestedQosLevel = qosLevel;
+        messageCallback = onReceivedMessage;
+    }
+
+    uMQTTSubscription(String topic, byte qosLevel, OnReceivedBinaryPublish onReceivedPublish) {
+        this.topic = topic;
+        this.requestedQosLevel = qosLevel;
+        binaryCallback = onReceivedPublish;
+    }
+
     /**
      * Defines a subscription and a callback for any received publish in that topic
      * @author gabriel
@@ -26,13 +42,49 @@ public class uMQTTSubscription {
         void onReceivedPublish(String topic, String message);
     }
 
-    void dispatchMessage(String message) {
-        publishCallback.onReceivedPublish(topic, message);
+    /**
+     * Same as {@link OnReceivedPublish}, but hands over a view of the received frame.
+     * Nothing is decoded unless asked for, and the view is only valid during the call.
+     */
+    public interface OnReceivedMessage {
+        void onReceivedMessage(uMQTTMessage message);
     }
 
-    void setRequestPacketId(short packetId) { requestPacketId = packetId; }
+    /**
+     * Same as {@link OnReceivedPublish}, for payloads that are not text. The payload is
+     * handed over as received.
+     */
+    public interface OnReceivedBinaryPublish {
+        void onReceivedPublish(String topic, byte[] payload);
+    }
+
+    void dispatchMessage(uMQTTMessage message) {
+        if (messageCallback != null) {
+            messageCallback.onReceivedMessage(message);
+        }
+        else if (binaryCallback != null) {
+            byte[] payload = new byte[message.getPayloadLength()];
+            message.getPayload().get(payload);
+            binaryCallback.onReceivedPublish(message.getTopic(), payload);
+        }
+        else publishCallback.onReceivedPublish(message.getTopic(), message.getMessage());
+    }
+
+    /**
+     * The subscription is over. Publishers handing its messages over complete.
+     */
+    void close() {
+        if (messageCallback instanceof uMQTTSubscriptionPublisher)
+            ((uMQTTSubscriptionPublisher) messageCallback).complete();
+    }
+
+    void setRequestPacketId(short packetId) {
+        requestPacketId = packetId;
+        requestedAt = System.nanoTime();
+    }
     void setGrantedQosLevel(byte qosLevel) { grantedQosLevel = qosLevel; }
     short getRequestPacketId() { return requestPacketId; }
+    long getRequestedAt() { return requestedAt; }
     String getTopic() { return topic; }
     byte getRequestedQoSLevel() { return requestedQosLevel; }
     byte getGrantedQoSLevel() { return grantedQosLevel; }
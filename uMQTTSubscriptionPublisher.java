@@ -0,0 +1,160 @@
+package re.usto.umqtt;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the messages of a subscription over to {@link uMQTTFlow.Subscriber}s, as much as each
+ * one requested. What's received beyond that waits in a buffer per subscriber; once one of
+ * them fills up, the input service stops reading until it has room again.
+ *
+ * <p> Messages are copied out of the read buffer once, and shared by every subscriber.
+ * {@code onNext} runs either on the thread reading from the broker or on the one calling
+ * {@code request}, never on both at once.
+ *
+ * @author gabriel
+ */
+
+class uMQTTSubscriptionPublisher implements uMQTTFlow.Publisher<uMQTTMessage>,
+        uMQTTSubscription.OnReceivedMessage {
+
+    private final uMQTTInputService mInputService;
+    private final int mBufferSize;
+    private final CopyOnWriteArrayList<Delivery> mDeliveries = new CopyOnWriteArrayList<>();
+    private volatile boolean mCompleted = false;
+
+    uMQTTSubscriptionPublisher(uMQTTInputService inputService, int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer must hold at least a message");
+        mInputService = inputService;
+        mBufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(uMQTTFlow.Subscriber<? super uMQTTMessage> subscriber) {
+        if (subscriber == null) throw new NullPointerException("Subscriber can't be null");
+        Delivery delivery = new Delivery(subscriber);
+        subscriber.onSubscribe(delivery);
+        if (delivery.mCancelled) return;
+        mDeliveries.add(delivery);
+        if (mCompleted) delivery.complete();
+    }
+
+    @Override
+    public void onReceivedMessage(uMQTTMessage message) {
+        if (mDeliveries.isEmpty()) return;
+        uMQTTMessage copy = message.copy();
+        for (Delivery delivery : mDeliveries) delivery.offer(copy);
+    }
+
+    /**
+     * The subscription is gone. Subscribers get what's buffered, then onComplete.
+     */
+    void complete() {
+        mCompleted = true;
+        for (Delivery delivery : mDeliveries) delivery.complete();
+    }
+
+    private final class Delivery implements uMQTTFlow.Subscription {
+
+        private final uMQTTFlow.Subscriber<? super uMQTTMessage> mSubscriber;
+        private final ConcurrentLinkedQueue<uMQTTMessage> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mQueued = new AtomicInteger(0);
+        private final AtomicLong mDemand = new AtomicLong(0);
+        // Whoever takes this from 0 drains, the others just tell it to go again
+        private final AtomicInteger mDrains = new AtomicInteger(0);
+        // Whether this buffer is keeping the input service from reading
+        private final AtomicBoolean mPausing = new AtomicBoolean(false);
+        private volatile boolean mCancelled = false;
+        private volatile boolean mCompleting = false;
+        private volatile Throwable mError;
+
+        Delivery(uMQTTFlow.Subscriber<? super uMQTTMessage> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        void offer(uMQTTMessage message) {
+            if (mCancelled) return;
+            mQueue.offer(message);
+            if (mQueued.incrementAndGet() >= mBufferSize && mPausing.compareAndSet(false, true))
+                mInputService.pauseReading();
+            drain();
+        }
+
+        void complete() {
+            mCompleting = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("Requested " + n + ", must be positive");
+            }
+            else {
+                while (true) {
+                    long current = mDemand.get();
+                    if (current == Long.MAX_VALUE) break;
+                    long next = current + n;
+                    if (next < 0) next = Long.MAX_VALUE;
+                    if (mDemand.compareAndSet(current, next)) break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (mDrains.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                if (!mCancelled && mError != null) {
+                    mCancelled = true;
+                    mSubscriber.onError(mError);
+                }
+                if (mCancelled) {
+                    mDeliveries.remove(this);
+                    mQueue.clear();
+                    mQueued.set(0);
+                    resume();
+                }
+                else {
+                    deliver();
+                }
+                missed = mDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver() {
+            long requested = mDemand.get();
+            long emitted = 0;
+            while (emitted != requested && !mCancelled) {
+                uMQTTMessage message = mQueue.poll();
+                if (message == null) break;
+                mQueued.decrementAndGet();
+                mSubscriber.onNext(message);
+                ++emitted;
+            }
+            if (emitted > 0 && requested != Long.MAX_VALUE) mDemand.addAndGet(-emitted);
+            if (mQueued.get() < mBufferSize) resume();
+
+            if (mCompleting && !mCancelled && mQueue.isEmpty()) {
+                mCancelled = true;
+                mDeliveries.remove(this);
+                mSubscriber.onComplete();
+            }
+        }
+
+        private void resume() {
+            if (mPausing.compareAndSet(true, false)) mInputService.resumeReading();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package re.usto.umqtt;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Creates the threads a client reads, writes and dispatches callbacks on, following its
+ * {@link uMQTTConfiguration#getExecutionMode() execution mode}. Timeouts, keep-alive and
+ * reconnect delays of every client run on one shared timer thread.
+ *
+ * <p> Virtual threads are looked up by reflection, since Android doesn't have them: they
+ * are only there when the library runs on a JVM that does (Java 21 onwards).
+ *
+ * @author gabriel
+ */
+
+final class uMQTTThreads {
+
+    // Null when the runtime has no virtual threads
+    private static final ThreadFactory VIRTUAL_THREADS = lookupVirtualThreads();
+
+    static final ScheduledThreadPoolExecutor TIMER;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "uMQTT-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private uMQTTThreads() { }
+
+    private static ThreadFactory lookupVirtualThreads() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+        catch (RuntimeException e) {
+            Timber.w(e, "Could not look virtual threads up");
+            return null;
+        }
+    }
+
+    static boolean hasVirtualThreads() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * @return A new thread, not started yet.
+     */
+    static Thread newThread(@uMQTTConfiguration.ExecutionMode int mode, Runnable runnable,
+                            String name) {
+        if (mode != uMQTTConfiguration.EXECUTION_VIRTUAL_THREADS)
+            return new Thread(runnable, name);
+
+        if (VIRTUAL_THREADS == null)
+            throw new UnsupportedOperationException("No virtual threads in this runtime");
+        Thread thread = VIRTUAL_THREADS.newThread(runnable);
+        thread.setName(name);
+        return thread;
+    }
+}
@@ -0,0 +1,238 @@
+package re.usto.umqtt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+import timber.log.Timber;
+
+/**
+ * TLS over the non-blocking channel transport, through an {@link SSLEngine}. The handshake
+ * is done while connecting; records are then encrypted on the writer thread and decrypted on
+ * the reader thread, each with its own direct network buffer.
+ *
+ * <p> The broker's certificate must be for the host we connect to: unless other parameters
+ * ask for a different algorithm, endpoint identification is done as for HTTPS, so a
+ * certificate the trust store accepts for some other host is refused.
+ *
+ * <p> The reader may have to send handshake data too (e.g. on a key update), so wrapping
+ * and writing to the channel always happen under the same lock.
+ *
+ * @author gabriel
+ */
+
+public class uMQTTTlsTransport extends uMQTTChannelTransport {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLContext mContext;
+    // Null to use the context's defaults
+    private final SSLParameters mParameters;
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    private SSLEngine mEngine;
+    // Received records, kept ready to be written into
+    private ByteBuffer mNetIn;
+    // Decrypted bytes not read yet, kept ready to be written into
+    private ByteBuffer mAppIn;
+    private ByteBuffer mNetOut;
+
+    public uMQTTTlsTransport(SSLContext context) {
+        this(context, null);
+    }
+
+    /**
+     * @param parameters protocols, cipher suites and such for the connection, or null for the
+     *                   context's defaults. Left untouched, they are copied on connecting.
+     */
+    public uMQTTTlsTransport(SSLContext context, SSLParameters parameters) {
+        if (context == null) throw new IllegalArgumentException("SSL context is null");
+        mContext = context;
+        mParameters = parameters;
+    }
+
+    public static Factory factory(SSLContext context) {
+        return factory(context, null);
+    }
+
+    public static Factory factory(final SSLContext context, final SSLParameters parameters) {
+        return new Factory() {
+            @Override
+            public uMQTTTransport create() {
+                return new uMQTTTlsTransport(context, parameters);
+            }
+        };
+    }
+
+    @Override
+    public void connect(String host, int port) throws IOException {
+        super.connect(host, port);
+
+        mEngine = mContext.createSSLEngine(host, port);
+        mEngine.setUseClientMode(true);
+        if (mParameters != null) mEngine.setSSLParameters(mParameters);
+        // The engine hands out a copy, the caller's parameters stay as they were
+        SSLParameters parameters = mEngine.getSSLParameters();
+        if (parameters.getEndpointIdentificationAlgorithm() == null)
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        mEngine.setSSLParameters(parameters);
+        mNetIn = ByteBuffer.allocateDirect(mEngine.getSession().getPacketBufferSize());
+        mNetOut = ByteBuffer.allocateDirect(mEngine.getSession().getPacketBufferSize());
+        mAppIn = ByteBuffer.allocate(mEngine.getSession().getApplicationBufferSize());
+
+        mEngine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    status = wrap(EMPTY);
+                    break;
+                case NEED_TASK:
+                    status = runTasks();
+                    break;
+                case NEED_UNWRAP:
+                default:
+                    // Newer runtimes also ask to unwrap again without reading
+                    SSLEngineResult result = unwrap();
+                    if (result == null) throw new EOFException("Closed during TLS handshake");
+                    status = result.getHandshakeStatus();
+                    break;
+            }
+        }
+        Timber.v("TLS handshake finished, using %s", mEngine.getSession().getCipherSuite());
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (mAppIn.position() == 0) {
+            SSLEngineResult result = unwrap();
+            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED)
+                return -1;
+
+            switch (result.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        mAppIn.flip();
+        int length = Math.min(mAppIn.remaining(), dst.remaining());
+        ByteBuffer chunk = mAppIn.duplicate();
+        chunk.limit(chunk.position() + length);
+        dst.put(chunk);
+        mAppIn.position(mAppIn.position() + length);
+        mAppIn.compact();
+        return length;
+    }
+
+    /**
+     * Decrypts one record, reading from the channel until a whole one is there.
+     * @return The engine result, or null if the connection was closed.
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            mNetIn.flip();
+            SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+            mNetIn.compact();
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!mNetIn.hasRemaining()) mNetIn = enlarge(mNetIn,
+                            mEngine.getSession().getPacketBufferSize(), true);
+                    if (readChannel(mNetIn) == -1) return null;
+                    break;
+                case BUFFER_OVERFLOW:
+                    mAppIn = enlarge(mAppIn,
+                            mEngine.getSession().getApplicationBufferSize(), false);
+                    break;
+                default:
+                    return result;
+            }
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            SSLEngineResult.HandshakeStatus status = wrap(src);
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) runTasks();
+        }
+    }
+
+    private SSLEngineResult.HandshakeStatus wrap(ByteBuffer src) throws IOException {
+        mWriteLock.lock();
+        try {
+            while (true) {
+                mNetOut.clear();
+                SSLEngineResult result = mEngine.wrap(src, mNetOut);
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        mNetOut = enlarge(mNetOut,
+                                mEngine.getSession().getPacketBufferSize(), true);
+                        continue;
+                    case CLOSED:
+                        if (result.bytesProduced() == 0)
+                            throw new SSLException("TLS session closed");
+                        break;
+                    default:
+                        break;
+                }
+                mNetOut.flip();
+                writeChannel(mNetOut);
+                return result.getHandshakeStatus();
+            }
+        }
+        finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    private SSLEngineResult.HandshakeStatus runTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) task.run();
+        return mEngine.getHandshakeStatus();
+    }
+
+    /**
+     * @return A buffer at least as big as the session asks for, with the same content.
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size, boolean direct) {
+        int capacity = Math.max(size, buffer.capacity() * 2);
+        ByteBuffer enlarged = direct
+                ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Best effort close_notify, not waiting on a writer stuck on the channel
+        if (mEngine != null && mWriteLock.tryLock()) {
+            try {
+                mEngine.closeOutbound();
+                if (isConnected()) wrap(EMPTY);
+            }
+            catch (IOException e) {
+                Timber.v(e, "Could not send TLS close_notify");
+            }
+            finally {
+                mWriteLock.unlock();
+            }
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,94 @@
+package re.usto.umqtt;
+
+import java.nio.charset.Charset;
+
+/**
+ * Bounded cache from raw topic bytes to their canonical String. We receive lots of publishes
+ * on few distinct topics, so decoding each one is wasteful: on a hit the cached String is
+ * returned and nothing is allocated.
+ *
+ * <p> Entries live in a fixed size table indexed by the hash of the topic bytes; a colliding
+ * topic simply replaces the previous entry. Entries are immutable, so the table can be read
+ * and written from any thread without locking.
+ *
+ * @author gabriel
+ */
+
+class uMQTTTopicCache {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int DEFAULT_CAPACITY = 1024;
+    // Longer topics are decoded every time, instead of keeping big entries around
+    private static final int MAX_CACHED_LENGTH = 256;
+
+    private static final uMQTTTopicCache sDefault = new uMQTTTopicCache(DEFAULT_CAPACITY);
+
+    private static final class Entry {
+        final int hash;
+        final byte[] bytes;
+        final String topic;
+
+        Entry(int hash, byte[] bytes, String topic) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.topic = topic;
+        }
+    }
+
+    private final Entry[] mEntries;
+    private final int mMask;
+
+    /**
+     * @param capacity amount of entries, rounded up to a power of two.
+     */
+    uMQTTTopicCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mEntries = new Entry[size];
+        mMask = size - 1;
+    }
+
+    static uMQTTTopicCache getDefault() {
+        return sDefault;
+    }
+
+    String get(byte[] buffer, int offset, int length) {
+        if (length > MAX_CACHED_LENGTH) return decode(buffer, offset, length);
+
+        int hash = hash(buffer, offset, length);
+        int index = hash & mMask;
+        Entry entry = mEntries[index];
+        if (entry != null && entry.hash == hash && equals(entry.bytes, buffer, offset, length))
+            return entry.topic;
+
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, offset, bytes, 0, length);
+        String topic = decode(buffer, offset, length);
+        mEntries[index] = new Entry(hash, bytes, topic);
+        return topic;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; ++i) hash = 31 * hash + buffer[i];
+        // Spread high bits, the table index only looks at the low ones
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(byte[] bytes, byte[] buffer, int offset, int length) {
+        if (bytes.length != length) return false;
+        for (int i = 0; i < length; ++i) {
+            if (bytes[i] != buffer[offset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes UTF-8, taking a shortcut for the pure ASCII topics we nearly always get.
+     */
+    static String decode(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            if (buffer[i] < 0) return new String(buffer, offset, length, uMQTTMessage.UTF_8);
+        }
+        return new String(buffer, offset, length, ISO_8859_1);
+    }
+}
@@ -0,0 +1,182 @@
+package re.usto.umqtt;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscriptions indexed by topic filter, one node per topic level. Matching an inbound topic
+ * walks its levels once, following the exact level, '+' and '#' branches, so its cost
+ * depends on the topic depth and not on how many subscriptions there are.
+ *
+ * <p> Topics starting with '$' are not matched by wildcards on their first level, as the
+ * MQTT spec asks. Changes are made one at a time under the tree's lock, since removing a
+ * filter prunes nodes another filter may be extending. Matching takes no lock and may
+ * happen concurrently from any thread.
+ *
+ * @author gabriel
+ */
+
+class uMQTTTopicTree {
+
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+
+    private static class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        volatile Node singleLevel;
+        volatile Node multiLevel;
+        volatile uMQTTSubscription subscription;
+
+        boolean isEmpty() {
+            return subscription == null && singleLevel == null && multiLevel == null
+                    && children.isEmpty();
+        }
+    }
+
+    private final Node mRoot = new Node();
+
+    /**
+     * @throws IllegalArgumentException if wildcards are misplaced in the filter.
+     */
+    static void validateFilter(String filter) {
+        if (filter.isEmpty())
+            throw new IllegalArgumentException("Topic filter can't be empty");
+
+        int start = 0;
+        while (start <= filter.length()) {
+            int end = levelEnd(filter, start);
+            String level = filter.substring(start, end);
+            if (level.contains(MULTI_LEVEL)
+                    && (!level.equals(MULTI_LEVEL) || end != filter.length()))
+                throw new IllegalArgumentException("'#' must be the last level of " + filter);
+            if (level.contains(SINGLE_LEVEL) && !level.equals(SINGLE_LEVEL))
+                throw new IllegalArgumentException("'+' must take a whole level in " + filter);
+            start = end + 1;
+        }
+    }
+
+    private static int levelEnd(String topic, int start) {
+        int end = topic.indexOf('/', start);
+        return end < 0 ? topic.length() : end;
+    }
+
+    synchronized void put(String filter, uMQTTSubscription subscription) {
+        validateFilter(filter);
+
+        Node node = mRoot;
+        int start = 0;
+        while (start <= filter.length()) {
+            int end = levelEnd(filter, start);
+            String level = filter.substring(start, end);
+            if (level.equals(SINGLE_LEVEL)) {
+                if (node.singleLevel == null) node.singleLevel = new Node();
+                node = node.singleLevel;
+            }
+            else if (level.equals(MULTI_LEVEL)) {
+                if (node.multiLevel == null) node.multiLevel = new Node();
+                node = node.multiLevel;
+            }
+            else {
+                Node child = node.children.get(level);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(level, child);
+                }
+                node = child;
+            }
+            start = end + 1;
+        }
+        node.subscription = subscription;
+    }
+
+    synchronized void remove(String filter) {
+        remove(mRoot, filter, 0);
+    }
+
+    /**
+     * @return Whether the node was left empty, and can be unlinked from its parent.
+     */
+    private boolean remove(Node node, String filter, int start) {
+        if (start > filter.length()) {
+            node.subscription = null;
+            return node.isEmpty();
+        }
+
+        int end = levelEnd(filter, start);
+        String level = filter.substring(start, end);
+        if (level.equals(SINGLE_LEVEL)) {
+            if (node.singleLevel != null && remove(node.singleLevel, filter, end + 1))
+                node.singleLevel = null;
+        }
+        else if (level.equals(MULTI_LEVEL)) {
+            if (node.multiLevel != null && remove(node.multiLevel, filter, end + 1))
+                node.multiLevel = null;
+        }
+        else {
+            Node child = node.children.get(level);
+            if (child != null && remove(child, filter, end + 1))
+                node.children.remove(level);
+        }
+        return node.isEmpty();
+    }
+
+    /**
+     * Collects every subscription whose filter matches the topic.
+     * @param topic an inbound topic name, with no wildcards.
+     * @param matches where matching subscriptions are added.
+     */
+    void match(String topic, List<uMQTTSubscription> matches) {
+        match(mRoot, topic, 0, matches);
+    }
+
+    boolean hasMatch(String topic) {
+        return hasMatch(mRoot, topic, 0);
+    }
+
+    private static boolean wildcardsAllowed(String topic, int start) {
+        return start != 0 || !topic.startsWith("$");
+    }
+
+    private void match(Node node, String topic, int start, List<uMQTTSubscription> matches) {
+        if (start > topic.length()) {
+            // Every level consumed. "a/#" also matches "a" itself
+            add(node.subscription, matches);
+            if (node.multiLevel != null) add(node.multiLevel.subscription, matches);
+            return;
+        }
+
+        boolean wildcards = wildcardsAllowed(topic, start);
+        Node multiLevel = node.multiLevel;
+        if (wildcards && multiLevel != null) add(multiLevel.subscription, matches);
+
+        int end = levelEnd(topic, start);
+        Node child = node.children.get(topic.substring(start, end));
+        if (child != null) match(child, topic, end + 1, matches);
+
+        Node singleLevel = node.singleLevel;
+        if (wildcards && singleLevel != null) match(singleLevel, topic, end + 1, matches);
+    }
+
+    private boolean hasMatch(Node node, String topic, int start) {
+        if (start > topic.length()) {
+            Node multiLevel = node.multiLevel;
+            return node.subscription != null
+                    || (multiLevel != null && multiLevel.subscription != null);
+        }
+
+        boolean wildcards = wildcardsAllowed(topic, start);
+        Node multiLevel = node.multiLevel;
+        if (wildcards && multiLevel != null && multiLevel.subscription != null) return true;
+
+        int end = levelEnd(topic, start);
+        Node child = node.children.get(topic.substring(start, end));
+        if (child != null && hasMatch(child, topic, end + 1)) return true;
+
+        Node singleLevel = node.singleLevel;
+        return wildcards && singleLevel != null && hasMatch(singleLevel, topic, end + 1);
+    }
+
+    private static void add(uMQTTSubscription subscription, List<uMQTTSubscription> matches) {
+        if (subscription != null) matches.add(subscription);
+    }
+}
@@ -0,0 +1,43 @@
+package re.usto.umqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte stream to the broker. The input service reads from it on its own thread, while the
+ * output service writes from another, so reads and writes may happen at the same time.
+ *
+ * <p> A transport is used for a single connection: a new one is asked from the configured
+ * {@link Factory} every time we connect.
+ *
+ * @author gabriel
+ */
+
+public interface uMQTTTransport {
+
+    interface Factory {
+        uMQTTTransport create();
+    }
+
+    void connect(String host, int port) throws IOException;
+
+    /**
+     * Blocks until some bytes are available.
+     * @return Amount of bytes read into dst, or -1 if the connection was closed.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Blocks until every remaining byte of src is written.
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * @return A buffer of the kind this transport writes with the least copying.
+     */
+    ByteBuffer allocate(int capacity);
+
+    boolean isConnected();
+
+    void close() throws IOException;
+}
@@ -11,15 +11,18 @@ import re.usto.umqtt.uMQTT;
 import timber.log.Timber;
 
 /**
- * This job is responsible for reopening socket if we lose internet connectivity
+ * This job is responsible for reopening socket if we lose internet connectivity. It
+ * makes a single attempt once the network is available.
  */
 public class NetworkJobService extends Job {
 
     private static final int PRIORITY = 1;
-    private static final int INITIAL_BACKOFF = 500;
 
-    public NetworkJobService() {
+    private final uMQTT mClient;
+
+    public NetworkJobService(uMQTT client) {
         super(new Params(PRIORITY).requireNetwork().setSingleId("JOB_OPEN_SOCKET"));
+        mClient = client;
     }
 
     @Override
@@ -29,13 +32,14 @@ public class NetworkJobService extends Job {
 
     @Override
     public void onRun() throws Throwable {
-        uMQTT.getInstance().openSocket();
+        mClient.openSocket();
     }
 
     @Override
     protected RetryConstraint shouldReRunOnThrowable(
             @NonNull Throwable throwable, int runCount, int maxRunCount) {
-        return RetryConstraint.createExponentialBackoff(runCount, INITIAL_BACKOFF);
+        // The client backs off and schedules the next attempt itself
+        return RetryConstraint.CANCEL;
     }
 
     @Override
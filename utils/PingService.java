@@ -1,18 +1,32 @@
 package re.usto.umqtt.utils;
 
+import android.os.Bundle;
+
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
 import re.usto.umqtt.uMQTT;
 
 /**
+ * Pings the broker for the client named in the job extras. Keep-alive runs inside the client
+ * now; this only serves ping jobs scheduled by earlier versions until they're cancelled.
+ *
  * @author gabriel
  */
 
 public class PingService extends JobService {
 
+    /**
+     * Id of the client the ping is for, as set in the job extras.
+     */
+    public static final String EXTRA_CLIENT_ID = "re.usto.umqtt.CLIENT_ID";
+
     @Override
     public boolean onStartJob(JobParameters jobParameters) {
-        uMQTT.getInstance().sendPing();
+        Bundle extras = jobParameters.getExtras();
+        uMQTT client = extras != null
+                ? uMQTT.getInstance(extras.getString(EXTRA_CLIENT_ID)) : null;
+        // The client might have been destroyed since the job was scheduled
+        if (client != null) client.sendPing();
         return false;
     }
 